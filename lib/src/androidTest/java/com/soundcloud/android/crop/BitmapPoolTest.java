@@ -0,0 +1,58 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BitmapPoolTest extends BaseTestCase {
+
+    private static final int BITMAP_BYTES = 100 * 100 * 4;
+
+    public void testPooledBitmapIsReused() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+
+        pool.put(bitmap);
+
+        assertThat(pool.get(100, 100, Bitmap.Config.ARGB_8888)).isSameAs(bitmap);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+        assertThat(pool.getMissCount()).isEqualTo(0);
+    }
+
+    public void testEmptyPoolCountsMiss() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+
+        assertThat(pool.get(100, 100, Bitmap.Config.ARGB_8888)).isNull();
+        assertThat(pool.getMissCount()).isEqualTo(1);
+    }
+
+    public void testOldestBitmapEvictedOverBudget() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        BitmapPool pool = new BitmapPool(BITMAP_BYTES);
+        Bitmap first = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap second = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+
+        pool.put(first);
+        pool.put(second);
+
+        assertThat(first.isRecycled()).isTrue();
+        assertThat(pool.getEvictionCount()).isEqualTo(1);
+        assertThat(pool.get(100, 100, Bitmap.Config.ARGB_8888)).isSameAs(second);
+    }
+
+    public void testImmutableBitmapIsRecycled() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap source = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap immutable = Bitmap.createBitmap(source, 0, 0, 50, 50);
+
+        pool.put(immutable);
+
+        assertThat(immutable.isRecycled()).isTrue();
+    }
+}
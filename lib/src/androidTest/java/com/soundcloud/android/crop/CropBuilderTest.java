@@ -2,11 +2,14 @@ package com.soundcloud.android.crop;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.provider.MediaStore;
 
 import org.fest.assertions.api.ANDROID;
 
+import java.util.ArrayList;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -65,6 +68,27 @@ public class CropBuilderTest extends BaseTestCase {
         assertThat(intent.getIntExtra("max_y", 0)).isEqualTo(300);
     }
 
+    public void testLosslessJpegSetAsExtra() {
+        builder.withLosslessJpeg();
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getBooleanExtra("lossless_jpeg", false)).isTrue();
+    }
+
+    public void testAdditionalOutputsSetAsExtras() {
+        builder.addOutput(Uri.parse("image:large"), 512, 512, Bitmap.CompressFormat.JPEG, 85)
+               .addOutput(Uri.parse("image:small"), 64, 48, Bitmap.CompressFormat.PNG, 100);
+
+        Intent intent = builder.getIntent(activity);
+        ArrayList<Uri> uris = intent.getParcelableArrayListExtra("output_uris");
+
+        assertThat(uris).containsExactly(Uri.parse("image:large"), Uri.parse("image:small"));
+        assertThat(intent.getIntegerArrayListExtra("output_sizes")).containsExactly(512, 512, 64, 48);
+        assertThat(intent.getStringArrayListExtra("output_formats")).containsExactly("JPEG", "PNG");
+        assertThat(intent.getIntegerArrayListExtra("output_qualities")).containsExactly(85, 100);
+    }
+
     public void testBuildsIntentWithMultipleOptions() {
         builder.asSquare().withMaxSize(200, 200);
 
@@ -0,0 +1,145 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CropEngineTest extends BaseTestCase {
+
+    private CropEngine.Request request;
+    private File input;
+    private File output;
+    private ExecutorService executor;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        request = new CropEngine.Request(Uri.parse("image:input"), new Rect(10, 20, 110, 220));
+
+        File cacheDir = getInstrumentation().getTargetContext().getCacheDir();
+        input = new File(cacheDir, "engine-test-input.jpg");
+        output = new File(cacheDir, "engine-test-output.jpg");
+        output.delete();
+        Bitmap source = Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888);
+        source.eraseColor(0xFF336699);
+        FileOutputStream out = new FileOutputStream(input);
+        try {
+            source.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+        }
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        input.delete();
+        output.delete();
+        super.tearDown();
+    }
+
+    public void testUsesExifOrientationByDefault() {
+        assertThat(request.exifOrientation).isEqualTo(CropEngine.Request.ORIENTATION_FROM_EXIF);
+    }
+
+    public void testRotationMapsToExifOrientation() {
+        assertThat(request.withRotation(90).exifOrientation).isEqualTo(ExifInterface.ORIENTATION_ROTATE_90);
+        assertThat(request.withRotation(-90).exifOrientation).isEqualTo(ExifInterface.ORIENTATION_ROTATE_270);
+        assertThat(request.withRotation(360).exifOrientation).isEqualTo(ExifInterface.ORIENTATION_NORMAL);
+    }
+
+    public void testRejectsRotationThatIsNotAQuarterTurn() {
+        try {
+            request.withRotation(45);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    public void testOutputsKeepTheirOptions() {
+        request.output(Uri.parse("image:full"))
+               .output(Uri.parse("image:thumb"), 64, 64, Bitmap.CompressFormat.PNG, 100);
+
+        assertThat(request.outputs).hasSize(2);
+        assertThat(request.outputs.get(0).maxWidth).isEqualTo(0);
+        assertThat(request.outputs.get(1).uri).isEqualTo(Uri.parse("image:thumb"));
+        assertThat(request.outputs.get(1).format).isEqualTo(Bitmap.CompressFormat.PNG);
+    }
+
+    public void testCropIsSavedOnExecutor() throws Exception {
+        CropEngine.Request crop = new CropEngine.Request(Uri.fromFile(input), new Rect(10, 20, 110, 220))
+                .output(Uri.fromFile(output));
+
+        List<Uri> saved = new CropEngine(getInstrumentation().getTargetContext())
+                .submit(crop, executor)
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(saved).containsExactly(Uri.fromFile(output));
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(output.getPath(), bounds);
+        assertThat(bounds.outWidth).isEqualTo(100);
+        assertThat(bounds.outHeight).isEqualTo(200);
+    }
+
+    public void testCancelledCropWritesNoOutput() throws Exception {
+        CropEngine.Request crop = new CropEngine.Request(Uri.fromFile(input), new Rect(10, 20, 110, 220))
+                .output(Uri.fromFile(output));
+        // Cancelled from the crop thread once decoding starts, so the crop is surely running
+        final FutureTask<?>[] task = new FutureTask<?>[1];
+        task[0] = new FutureTask<List<Uri>>(new CropEngine(getInstrumentation().getTargetContext()).newJob(
+                crop, new CropPipeline.ProgressListener() {
+                    @Override
+                    public void onStage(int stage) {
+                        if (stage == CropPipeline.STAGE_DECODE) {
+                            task[0].cancel(true);
+                        }
+                    }
+                }));
+
+        executor.execute(task[0]);
+        try {
+            task[0].get(10, TimeUnit.SECONDS);
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+            // Expected
+        }
+        // Let the crop thread finish unwinding before looking for the file
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(output.exists()).isFalse();
+    }
+
+    public void testRequestWithoutOutputIsRejected() {
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+
+        try {
+            new CropEngine(context).newJob(request);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CropPipelineTest extends BaseTestCase {
+
+    private static final Rect REGION = new Rect(0, 0, 3000, 3000);
+
+    private File mInput;
+    private File mResult;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        File cacheDir = getInstrumentation().getTargetContext().getCacheDir();
+        mInput = new File(cacheDir, "pipeline-test-input");
+        mResult = new File(cacheDir, "pipeline-test-output");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mInput.delete();
+        mResult.delete();
+        super.tearDown();
+    }
+
+    public void testFullSizeOutputHoldsRegionAndRotatedCopy() {
+        long bytes = CropPipeline.estimatePeakBytes(REGION, Collections.singletonList(output(0, 0)), 1);
+
+        assertThat(bytes).isEqualTo(2L * 3000 * 3000 * 4);
+    }
+
+    public void testSmallOutputDecodesAtTargetSampleSize() {
+        // 200px avatar: decoded at sample size 8, 375x375
+        long bytes = CropPipeline.estimatePeakBytes(REGION, Collections.singletonList(output(200, 200)), 1);
+
+        assertThat(bytes).isEqualTo(2L * 375 * 375 * 4 + 2L * 200 * 200 * 4);
+    }
+
+    public void testLadderSizedByLargestOutput() {
+        long single = CropPipeline.estimatePeakBytes(REGION, Collections.singletonList(output(1024, 1024)), 1);
+        long ladder = CropPipeline.estimatePeakBytes(REGION, Arrays.asList(output(1024, 1024), output(64, 64)), 1);
+
+        assertThat(ladder).isEqualTo(single + 2L * 64 * 64 * 4);
+    }
+
+    public void testUnsizedOutputKeepsPipelineSampleSize() throws Exception {
+        writeSource(Bitmap.CompressFormat.PNG, 800, 600);
+
+        // Sample size 2, not whatever the preview was decoded at
+        BitmapFactory.Options bounds = crop(new Rect(0, 0, 400, 400), 2, 1, Bitmap.CompressFormat.PNG);
+
+        assertThat(bounds.outWidth).isEqualTo(200);
+        assertThat(bounds.outHeight).isEqualTo(200);
+    }
+
+    public void testRotatedPngHasNoLosslessPadding() throws Exception {
+        writeSource(Bitmap.CompressFormat.JPEG, 200, 100);
+        // 50x30, off the 16 pixel grid and far enough from the edges to be padded
+        Rect region = new Rect(20, 10, 70, 40);
+
+        for (int orientation = 2; orientation <= 8; orientation++) {
+            BitmapFactory.Options bounds = crop(region, 1, orientation, Bitmap.CompressFormat.PNG);
+
+            final boolean transposed = orientation >= 5;
+            assertThat(bounds.outWidth).as("orientation " + orientation).isEqualTo(transposed ? 30 : 50);
+            assertThat(bounds.outHeight).as("orientation " + orientation).isEqualTo(transposed ? 50 : 30);
+        }
+    }
+
+    private void writeSource(Bitmap.CompressFormat format, int width, int height) throws Exception {
+        Bitmap source = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        source.eraseColor(0xFF336699);
+        FileOutputStream out = new FileOutputStream(mInput);
+        try {
+            source.compress(format, 100, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Runs the pipeline with one unsized output and returns the bounds of what it wrote
+    private BitmapFactory.Options crop(Rect region, int sampleSize, int orientation, Bitmap.CompressFormat format)
+            throws Exception {
+        Context context = getInstrumentation().getTargetContext();
+        CropSource source = CropSource.open(context, Uri.fromFile(mInput));
+        try {
+            new CropPipeline(source, region, sampleSize, orientation)
+                    .addOutput(new CropPipeline.Output(Uri.fromFile(mResult), 0, 0, format, 100))
+                    .run(context.getContentResolver());
+        } finally {
+            source.close();
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(mResult.getPath(), bounds);
+        return bounds;
+    }
+
+    private static CropPipeline.Output output(int maxWidth, int maxHeight) {
+        return new CropPipeline.Output(null, maxWidth, maxHeight, Bitmap.CompressFormat.JPEG, 90);
+    }
+}
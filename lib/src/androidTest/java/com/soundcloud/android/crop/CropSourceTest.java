@@ -0,0 +1,75 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CropSourceTest extends BaseTestCase {
+
+    private File mFile;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("source", null, getContext().getCacheDir());
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 1, 2, 3, 4, 5 });
+        out.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testFileSourceIsMappedInPlace() throws Exception {
+        CropSource source = CropSource.open(getContext(), Uri.fromFile(mFile));
+
+        assertThat(source.getFile()).isEqualTo(mFile);
+        assertThat(source.getLength()).isEqualTo(5);
+        assertThat(source.getSpooledBytes()).isEqualTo(0);
+        source.close();
+    }
+
+    public void testStreamsStartAtBeginningAndCountBytesRead() throws Exception {
+        CropSource source = CropSource.open(getContext(), Uri.fromFile(mFile));
+
+        InputStream first = source.openStream();
+        assertThat(first.read()).isEqualTo(1);
+        assertThat(first.read()).isEqualTo(2);
+        InputStream second = source.openStream();
+        byte[] buffer = new byte[8];
+
+        assertThat(second.read(buffer)).isEqualTo(5);
+        assertThat(buffer[0]).isEqualTo((byte) 1);
+        assertThat(second.read()).isEqualTo(-1);
+        assertThat(source.getBytesRead()).isEqualTo(7);
+        source.close();
+    }
+
+    public void testRegionDecoderReadsFromDescriptor() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        Bitmap.createBitmap(64, 32, Bitmap.Config.ARGB_8888).compress(Bitmap.CompressFormat.JPEG, 90, out);
+        out.close();
+        CropSource source = CropSource.open(getContext(), Uri.fromFile(mFile));
+
+        BitmapRegionDecoder decoder = source.newRegionDecoder();
+
+        assertThat(decoder.getWidth()).isEqualTo(64);
+        assertThat(decoder.getHeight()).isEqualTo(32);
+        decoder.recycle();
+        source.close();
+    }
+
+    private Context getContext() {
+        return getInstrumentation().getTargetContext();
+    }
+}
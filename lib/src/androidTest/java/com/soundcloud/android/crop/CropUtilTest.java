@@ -0,0 +1,61 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CropUtilTest extends BaseTestCase {
+
+    // Stored image, and a part of it that is marked red
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 20;
+    private static final Rect MARKED = new Rect(0, 0, 10, 5);
+
+    public void testTransposedOrientationsRotateAndFlip() {
+        assertThat(CropUtil.getExifRotation(ExifInterface.ORIENTATION_TRANSPOSE)).isEqualTo(270);
+        assertThat(CropUtil.getExifRotation(ExifInterface.ORIENTATION_TRANSVERSE)).isEqualTo(90);
+        assertThat(CropUtil.isExifFlipped(ExifInterface.ORIENTATION_TRANSPOSE)).isTrue();
+        assertThat(CropUtil.isExifFlipped(ExifInterface.ORIENTATION_TRANSVERSE)).isTrue();
+        assertThat(CropUtil.isExifFlipped(ExifInterface.ORIENTATION_ROTATE_90)).isFalse();
+    }
+
+    public void testTransposePreviewMatchesOutput() {
+        assertPreviewMatchesOutput(ExifInterface.ORIENTATION_TRANSPOSE);
+    }
+
+    public void testTransversePreviewMatchesOutput() {
+        assertPreviewMatchesOutput(ExifInterface.ORIENTATION_TRANSVERSE);
+    }
+
+    /*
+     * The preview shows the marked part where the saved, upright image has it,
+     * and a crop of that part of the preview maps back onto the marked part.
+     */
+    private static void assertPreviewMatchesOutput(int orientation) {
+        Bitmap stored = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        stored.eraseColor(Color.BLUE);
+        for (int y = MARKED.top; y < MARKED.bottom; y++) {
+            for (int x = MARKED.left; x < MARKED.right; x++) {
+                stored.setPixel(x, y, Color.RED);
+            }
+        }
+        RotateBitmap preview = new RotateBitmap(stored, CropUtil.getExifRotation(orientation),
+                                                CropUtil.isExifFlipped(orientation));
+        RectF shown = new RectF(MARKED);
+        preview.getRotateMatrix().mapRect(shown);
+        Rect crop = new Rect(Math.round(shown.left), Math.round(shown.top),
+                             Math.round(shown.right), Math.round(shown.bottom));
+
+        // What the pipeline saves
+        Bitmap upright = Bitmap.createBitmap(stored, 0, 0, WIDTH, HEIGHT, CropUtil.getExifMatrix(orientation), false);
+        assertThat(upright.getWidth()).isEqualTo(preview.getWidth());
+        assertThat(upright.getHeight()).isEqualTo(preview.getHeight());
+        assertThat(upright.getPixel(crop.centerX(), crop.centerY())).isEqualTo(Color.RED);
+
+        assertThat(CropUtil.toStoredRect(crop, orientation, WIDTH, HEIGHT)).isEqualTo(MARKED);
+    }
+}
@@ -0,0 +1,80 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DecodePlannerTest extends BaseTestCase {
+
+    private static final long LARGE_BUDGET = 64 * 1024 * 1024;
+
+    public void testSmallImageDecodedAtFullSize() {
+        DecodePlanner planner = new DecodePlanner(2000, 1080, 1800, LARGE_BUDGET);
+
+        DecodePlanner.Plan plan = planner.plan(1024, 768);
+
+        assertThat(plan.sampleSize).isEqualTo(1);
+        assertThat(plan.config).isEqualTo(Bitmap.Config.ARGB_8888);
+        assertThat(plan.decodesSaved).isEqualTo(0);
+    }
+
+    public void testLargeImageSampledToTextureSizeInOnePass() {
+        DecodePlanner planner = new DecodePlanner(2000, 1080, 1800, LARGE_BUDGET);
+
+        // 48MP camera photo: the retry loop decoded at sample sizes 1, 2 and 4
+        DecodePlanner.Plan plan = planner.plan(8000, 6000);
+
+        assertThat(plan.sampleSize).isEqualTo(4);
+        assertThat(plan.getWidth()).isEqualTo(2000);
+        assertThat(plan.getHeight()).isEqualTo(1500);
+        assertThat(plan.decodesSaved).isEqualTo(2);
+    }
+
+    public void testMemoryBudgetSwitchesToRgb565BeforeSamplingBelowTarget() {
+        // 1000x750 ARGB needs 3MB, the next sample size would be smaller than the view
+        DecodePlanner planner = new DecodePlanner(2000, 800, 600, 2 * 1024 * 1024);
+
+        DecodePlanner.Plan plan = planner.plan(1000, 750);
+
+        assertThat(plan.sampleSize).isEqualTo(1);
+        assertThat(plan.config).isEqualTo(Bitmap.Config.RGB_565);
+        assertThat(plan.configReason).isEqualTo(DecodePlanner.Plan.CONFIG_MEMORY);
+        assertThat(plan.getByteCount()).isLessThanOrEqualTo(2 * 1024 * 1024);
+    }
+
+    public void testMemoryBudgetIncreasesSampleSize() {
+        DecodePlanner planner = new DecodePlanner(2000, 400, 400, 256 * 1024);
+
+        DecodePlanner.Plan plan = planner.plan(2000, 2000);
+
+        assertThat(plan.sampleSize).isEqualTo(8);
+        assertThat(plan.config).isEqualTo(Bitmap.Config.RGB_565);
+        assertThat(plan.getByteCount()).isLessThanOrEqualTo(256 * 1024);
+    }
+
+    public void testSmallViewSamplesFurtherThanTextureSize() {
+        // 8MP photo on a 480x800 phone: fills the view at 816x612 instead of 1632x1224
+        DecodePlanner planner = new DecodePlanner(2000, 480, 800, LARGE_BUDGET);
+
+        DecodePlanner.Plan plan = planner.plan(3264, 2448);
+
+        assertThat(plan.sampleSize).isEqualTo(4);
+        assertThat(plan.targetWidth).isEqualTo(480);
+        assertThat(plan.targetHeight).isEqualTo(800);
+    }
+
+    public void testOpaqueSourceDecodedAsRgb565() {
+        DecodePlanner planner = new DecodePlanner(2000, 400, 400, LARGE_BUDGET);
+
+        DecodePlanner.Plan transparent = planner.plan(2000, 2000, false);
+        DecodePlanner.Plan opaque = planner.plan(2000, 2000, true);
+
+        assertThat(transparent.config).isEqualTo(Bitmap.Config.ARGB_8888);
+        assertThat(transparent.configReason).isEqualTo(DecodePlanner.Plan.CONFIG_ALPHA);
+        assertThat(opaque.sampleSize).isEqualTo(transparent.sampleSize);
+        assertThat(opaque.config).isEqualTo(Bitmap.Config.RGB_565);
+        assertThat(opaque.configReason).isEqualTo(DecodePlanner.Plan.CONFIG_OPAQUE);
+        assertThat(opaque.getByteCount() * 2).isEqualTo(transparent.getByteCount());
+    }
+
+}
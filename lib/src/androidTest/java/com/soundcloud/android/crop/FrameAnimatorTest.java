@@ -0,0 +1,106 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Matrix;
+import android.os.Handler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class FrameAnimatorTest extends BaseTestCase {
+
+    private static final long MILLIS = 1000000L;
+
+    private CropImageView mView;
+    private FrameAnimator mAnimator;
+    // Read on the main thread, checked on the test thread
+    private float mHalfway;
+    private float mEnd;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView = new CropImageView(getInstrumentation().getTargetContext());
+                mAnimator = new FrameAnimator(mView, new Handler());
+            }
+        });
+    }
+
+    // Frames are driven by hand, all on the main thread so that no real frame gets in between
+    public void testOverlappingPansAreMerged() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                mAnimator.animatePan(100, 0, 100);
+                mAnimator.doFrame(start + 50 * MILLIS);
+                mHalfway = mView.getValue(mView.mSuppMatrix, Matrix.MTRANS_X);
+                mAnimator.animatePan(100, 0, 100);
+                mAnimator.doFrame(start + 1000 * MILLIS);
+                mEnd = mView.getValue(mView.mSuppMatrix, Matrix.MTRANS_X);
+            }
+        });
+
+        assertThat(mHalfway).isGreaterThan(0f).isLessThan(100f);
+        assertThat(mEnd).isEqualTo(200f);
+        assertThat(mAnimator.isRunning()).isFalse();
+    }
+
+    public void testGestureInputIsAppliedOncePerFrame() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Two batched touch events before the frame
+                mAnimator.addGesture(1F, 0, 0, 10, 0);
+                mAnimator.addGesture(1F, 0, 0, 15, 5);
+                mHalfway = mView.getValue(mView.mSuppMatrix, Matrix.MTRANS_X);
+                mAnimator.doFrame(System.nanoTime());
+                mEnd = mView.getValue(mView.mSuppMatrix, Matrix.MTRANS_X);
+            }
+        });
+
+        assertThat(mHalfway).isEqualTo(0f);
+        assertThat(mEnd).isEqualTo(25f);
+        assertThat(mAnimator.isRunning()).isFalse();
+        // Gestures are not animations
+        assertThat(mAnimator.getLastStats()).isNull();
+    }
+
+    public void testFlingAfterGestureStepsOneFrame() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Released while the frame for the last move is still pending
+                mAnimator.addGesture(1F, 0, 0, 10, 0);
+                mAnimator.fling(1000, 0);
+                mAnimator.doFrame(System.nanoTime() + 16 * MILLIS);
+                mEnd = mView.getValue(mView.mSuppMatrix, Matrix.MTRANS_X);
+                mAnimator.cancel();
+            }
+        });
+
+        // The move, plus about one frame at 1000 pixels per second
+        assertThat(mEnd).isGreaterThan(10f).isLessThan(10f + 1000 * 0.1f);
+    }
+
+    public void testStatsCountFramesAndDrops() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                mAnimator.animatePan(10, 0, 50);
+                mAnimator.doFrame(start + 17 * MILLIS);
+                mAnimator.doFrame(start + 34 * MILLIS);
+                // Two frames missed, this one also ends the pan
+                mAnimator.doFrame(start + 84 * MILLIS);
+            }
+        });
+
+        FrameAnimator.Stats stats = mAnimator.getLastStats();
+        assertThat(stats).isNotNull();
+        assertThat(stats.frames).isEqualTo(3);
+        assertThat(stats.droppedFrames).isEqualTo(2);
+        assertThat(stats.maxFrameNanos).isEqualTo(50 * MILLIS);
+    }
+}
@@ -0,0 +1,82 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.view.View;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HighlightViewTest extends BaseTestCase {
+
+    private HighlightView mHighlightView;
+    private Canvas mCanvas;
+    // Preallocated, so that recording it does not count as an allocation
+    private final Rect mInvalidated = new Rect();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        View view = new View(getInstrumentation().getTargetContext()) {
+            @Override
+            public void invalidate(Rect dirty) {
+                mInvalidated.set(dirty);
+                super.invalidate(dirty);
+            }
+
+            @Override
+            public void invalidate() {
+                mInvalidated.set(0, 0, getWidth(), getHeight());
+                super.invalidate();
+            }
+        };
+        view.layout(0, 0, 400, 400);
+        mHighlightView = new HighlightView(view);
+        mHighlightView.setup(new Matrix(), new Rect(0, 0, 400, 400), new RectF(100, 100, 200, 200), false);
+        mHighlightView.setFocus(true);
+        mCanvas = new Canvas(Bitmap.createBitmap(400, 400, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testDraggingAndDrawingDoNotAllocate() {
+        // Warm up, the first calls may load classes or build the outline
+        drag();
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        try {
+            drag();
+            assertThat(Debug.getThreadAllocCount()).isEqualTo(0);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public void testGrowInvalidatesOnlyAroundOldAndNewCrop() {
+        mHighlightView.handleMotion(HighlightView.GROW_RIGHT_EDGE, 10, 0);
+
+        // Grows on both sides
+        Rect changed = new Rect(90, 100, 210, 200);
+        assertThat(mInvalidated.contains(changed)).isTrue();
+        assertThat(mInvalidated.contains(new Rect(0, 0, 400, 400))).isFalse();
+    }
+
+    public void testMoveKeepsCropInsideImage() {
+        mHighlightView.handleMotion(HighlightView.MOVE, 500, 0);
+
+        assertThat(mHighlightView.mCropRect.right).isEqualTo(400f);
+        assertThat(mHighlightView.mDrawRect).isEqualTo(new Rect(300, 100, 400, 200));
+    }
+
+    private void drag() {
+        for (int i = 0; i < 10; i++) {
+            final float x = 150 + i;
+            mHighlightView.getHit(x, 150);
+            mHighlightView.handleMotion(HighlightView.MOVE, 1, 1);
+            mHighlightView.handleMotion(HighlightView.GROW_RIGHT_EDGE | HighlightView.GROW_BOTTOM_EDGE, 1, 1);
+            mHighlightView.draw(mCanvas);
+        }
+    }
+}
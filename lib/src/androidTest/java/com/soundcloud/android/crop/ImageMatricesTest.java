@@ -0,0 +1,59 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.Offset.offset;
+
+public class ImageMatricesTest extends BaseTestCase {
+
+    private ImageMatrices mMatrices;
+    private RotateBitmap mBitmap;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMatrices = new ImageMatrices();
+        mBitmap = new RotateBitmap(Bitmap.createBitmap(200, 100, Bitmap.Config.ARGB_8888), 90);
+        mMatrices.setBase(mBitmap, 400, 400);
+    }
+
+    public void testBaseRecomputedOnlyWhenSizeChanges() {
+        assertThat(mMatrices.setBase(mBitmap, 400, 400)).isFalse();
+        assertThat(mMatrices.setBase(mBitmap, 400, 300)).isTrue();
+    }
+
+    public void testCachedMatricesFollowSuppMatrix() {
+        Matrix display = mMatrices.getDisplayMatrix();
+        float[] before = values(display);
+
+        mMatrices.getSuppMatrix().postScale(2F, 2F);
+        mMatrices.suppChanged();
+
+        assertThat(mMatrices.getDisplayMatrix()).isSameAs(display);
+        assertThat(values(display)[Matrix.MSKEW_X]).isEqualTo(before[Matrix.MSKEW_X] * 2F);
+        assertThat(mMatrices.getScale()).isEqualTo(2F);
+    }
+
+    public void testUnrotatedAndInverseMatrices() {
+        mMatrices.getSuppMatrix().postTranslate(10, 20);
+        mMatrices.suppChanged();
+
+        // Only the unrotated matrix keeps the axes
+        assertThat(values(mMatrices.getUnrotatedMatrix())[Matrix.MSKEW_X]).isEqualTo(0f);
+        assertThat(values(mMatrices.getDisplayMatrix())[Matrix.MSKEW_X]).isNotEqualTo(0f);
+
+        float[] point = { 50, 60 };
+        mMatrices.getDisplayMatrix().mapPoints(point);
+        mMatrices.getInverseMatrix().mapPoints(point);
+        assertThat(point[0]).isEqualTo(50f, offset(0.01f));
+        assertThat(point[1]).isEqualTo(60f, offset(0.01f));
+    }
+
+    private static float[] values(Matrix matrix) {
+        float[] values = new float[9];
+        matrix.getValues(values);
+        return values;
+    }
+}
@@ -0,0 +1,51 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PreviewCacheTest extends BaseTestCase {
+
+    private static final int BITMAP_BYTES = 100 * 100 * 4;
+    private static final Uri URI = Uri.parse("content://media/external/images/media/1");
+
+    public void testTakenPreviewIsRemoved() {
+        PreviewCache cache = new PreviewCache(10 * BITMAP_BYTES, new BitmapPool(0));
+        PreviewCache.Entry entry = entry();
+        cache.put(new PreviewCache.Key(URI, 1000, 5000), entry);
+
+        assertThat(cache.take(new PreviewCache.Key(URI, 1000, 5000))).isSameAs(entry);
+        assertThat(cache.take(new PreviewCache.Key(URI, 1000, 5000))).isNull();
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    public void testModifiedSourceMisses() {
+        PreviewCache cache = new PreviewCache(10 * BITMAP_BYTES, new BitmapPool(0));
+        cache.put(new PreviewCache.Key(URI, 1000, 5000), entry());
+
+        assertThat(cache.take(new PreviewCache.Key(URI, 2000, 5000))).isNull();
+        assertThat(cache.take(new PreviewCache.Key(URI, 1000, 6000))).isNull();
+    }
+
+    public void testLeastRecentlyUsedEvictedOverBudget() {
+        PreviewCache cache = new PreviewCache(2 * BITMAP_BYTES, new BitmapPool(0));
+        PreviewCache.Entry first = entry();
+        PreviewCache.Entry second = entry();
+        PreviewCache.Entry third = entry();
+
+        cache.put(new PreviewCache.Key(URI, 1, 1), first);
+        cache.put(new PreviewCache.Key(URI, 2, 2), second);
+        cache.put(new PreviewCache.Key(URI, 3, 3), third);
+
+        assertThat(first.bitmap.isRecycled()).isTrue();
+        assertThat(second.bitmap.isRecycled()).isFalse();
+        assertThat(cache.take(new PreviewCache.Key(URI, 1, 1))).isNull();
+        assertThat(cache.take(new PreviewCache.Key(URI, 3, 3))).isSameAs(third);
+    }
+
+    private static PreviewCache.Entry entry() {
+        return new PreviewCache.Entry(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 4, 400, 400);
+    }
+}
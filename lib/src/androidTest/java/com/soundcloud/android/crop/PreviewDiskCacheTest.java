@@ -0,0 +1,83 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+
+import java.io.File;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PreviewDiskCacheTest extends BaseTestCase {
+
+    private static final int FILE_BYTES = 64 + 100 * 100 * 4;
+    private static final Uri URI = Uri.parse("content://media/external/images/media/1");
+
+    private File mDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getInstrumentation().getTargetContext().getCacheDir(), "preview-disk-cache-test");
+        deleteDirectory();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testStoredPreviewIsLoadedWithPixels() {
+        PreviewDiskCache cache = new PreviewDiskCache(mDirectory, 10 * FILE_BYTES);
+        PreviewCache.Key key = new PreviewCache.Key(URI, 1000, 5000);
+        cache.store(key, entry(Color.RED), 6);
+
+        PreviewCache.Entry loaded = cache.load(key, 6);
+
+        assertThat(loaded).isNotNull();
+        assertThat(loaded.bitmap.getWidth()).isEqualTo(100);
+        assertThat(loaded.bitmap.getHeight()).isEqualTo(100);
+        assertThat(loaded.bitmap.getPixel(50, 50)).isEqualTo(Color.RED);
+        assertThat(loaded.sampleSize).isEqualTo(4);
+        assertThat(loaded.sourceWidth).isEqualTo(400);
+        assertThat(loaded.sourceHeight).isEqualTo(300);
+    }
+
+    public void testModifiedSourceOrOrientationMisses() {
+        PreviewDiskCache cache = new PreviewDiskCache(mDirectory, 10 * FILE_BYTES);
+        cache.store(new PreviewCache.Key(URI, 1000, 5000), entry(Color.RED), 1);
+
+        assertThat(cache.load(new PreviewCache.Key(URI, 2000, 5000), 1)).isNull();
+        assertThat(cache.load(new PreviewCache.Key(URI, 1000, 6000), 1)).isNull();
+        assertThat(cache.load(new PreviewCache.Key(URI, 1000, 5000), 3)).isNull();
+    }
+
+    public void testOldestFilesDeletedOverBudget() {
+        PreviewDiskCache cache = new PreviewDiskCache(mDirectory, 2 * FILE_BYTES);
+        cache.store(new PreviewCache.Key(URI, 1, 1), entry(Color.RED), 1);
+        mDirectory.listFiles()[0].setLastModified(System.currentTimeMillis() - 60000);
+        cache.store(new PreviewCache.Key(URI, 2, 2), entry(Color.GREEN), 1);
+        cache.store(new PreviewCache.Key(URI, 3, 3), entry(Color.BLUE), 1);
+
+        assertThat(mDirectory.listFiles()).hasSize(2);
+        assertThat(cache.load(new PreviewCache.Key(URI, 1, 1), 1)).isNull();
+        assertThat(cache.load(new PreviewCache.Key(URI, 3, 3), 1)).isNotNull();
+    }
+
+    private static PreviewCache.Entry entry(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return new PreviewCache.Entry(bitmap, 4, 400, 300);
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,102 @@
+package com.soundcloud.android.crop;
+
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class ResamplerTest extends BaseTestCase {
+
+    public void testSolidColorStaysSolidWithEveryFilter() {
+        int[] src = fill(new int[40 * 30], 0xFF336699);
+
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            int[] down = new int[13 * 7];
+            new Resampler(filter, null, 1).resample(src, 40, 30, down, 13, 7);
+            assertThat(down).isEqualTo(fill(new int[13 * 7], 0xFF336699));
+
+            int[] up = new int[97 * 61];
+            new Resampler(filter, null, 1).resample(src, 40, 30, up, 97, 61);
+            assertThat(up).isEqualTo(fill(new int[97 * 61], 0xFF336699));
+        }
+    }
+
+    public void testBoxFilterAveragesBlocks() {
+        int[] src = {
+                0xFF000000, 0xFF0000FF, 0xFFFFFFFF, 0xFFFFFFFF,
+                0xFF0000FF, 0xFF000000, 0xFFFFFFFF, 0xFFFFFFFF
+        };
+        int[] dst = new int[2];
+
+        new Resampler(Resampler.Filter.BOX, null, 1).resample(src, 4, 2, dst, 2, 1);
+
+        assertThat(dst[0]).isEqualTo(0xFF000080);
+        assertThat(dst[1]).isEqualTo(0xFFFFFFFF);
+    }
+
+    public void testTransparentPixelsDoNotBleedColor() {
+        int[] src = { 0x00FF0000, 0xFF0000FF };
+        int[] dst = new int[1];
+
+        new Resampler(Resampler.Filter.BOX, null, 1).resample(src, 2, 1, dst, 1, 1);
+
+        assertThat(dst[0]).isEqualTo(0x800000FF);
+    }
+
+    public void testParallelBandsMatchSingleThread() throws Exception {
+        int[] src = new int[300 * 200];
+        Random random = new Random(42);
+        for (int i = 0; i < src.length; i++) {
+            src[i] = random.nextInt();
+        }
+        int[] single = new int[123 * 87];
+        int[] parallel = new int[123 * 87];
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new Resampler(Resampler.Filter.LANCZOS3, null, 1).resample(src, 300, 200, single, 123, 87);
+            new Resampler(Resampler.Filter.LANCZOS3, executor, 4).resample(src, 300, 200, parallel, 123, 87);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(parallel).isEqualTo(single);
+    }
+
+    public void testInterruptedSingleBandThrowsAndKeepsFlag() {
+        assertInterruptedResampleThrows(null, 1);
+    }
+
+    public void testInterruptedParallelBandsThrowAndKeepFlag() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertInterruptedResampleThrows(executor, 4);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertInterruptedResampleThrows(ExecutorService executor, int threads) {
+        int[] src = fill(new int[300 * 200], 0xFF336699);
+        int[] dst = new int[123 * 87];
+        Thread.currentThread().interrupt();
+        try {
+            new Resampler(Resampler.Filter.LANCZOS3, executor, threads).resample(src, 300, 200, dst, 123, 87);
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+            // The pipeline checks the flag again before encoding
+            assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private static int[] fill(int[] pixels, int color) {
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = color;
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,154 @@
+package com.soundcloud.android.crop.jpeg;
+
+import com.soundcloud.android.crop.BaseTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static com.soundcloud.android.crop.jpeg.JpegMetadataTest.concat;
+import static com.soundcloud.android.crop.jpeg.JpegMetadataTest.exif;
+import static com.soundcloud.android.crop.jpeg.JpegMetadataTest.jpeg;
+import static com.soundcloud.android.crop.jpeg.JpegMetadataTest.writeShort;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class JpegMetadataOutputStreamTest extends BaseTestCase {
+
+    private static final byte[] ICC_PROFILE = "ICC_PROFILE\0\1\1profile data".getBytes();
+    private static final byte[] XMP = ("http://ns.adobe.com/xap/1.0/\0<x:xmpmeta><rdf:Description tiff:Orientation=\"6\">"
+                                       + "<tiff:Orientation> 8 </tiff:Orientation></rdf:Description></x:xmpmeta>").getBytes();
+    private static final byte[] JFIF = { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 };
+
+    public void testExifIsMadeUprightForNewSize() throws Exception {
+        JpegMetadata source = read(jpeg(exif(true, JpegMetadata.ORIENTATION_ROTATE_90, 500), 4000, 3000));
+
+        byte[] written = write(source, true, encoded(300, 200));
+        JpegMetadata output = read(written);
+
+        assertThat(output.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_NORMAL);
+        assertThat(output.getWidth()).isEqualTo(300);
+        assertThat(output.hasThumbnail()).isFalse();
+        assertThat(source.getExifSegment(300, 200).length)
+                .isEqualTo(4 + 6 + JpegMetadataTest.THUMBNAIL_START);
+        assertThat(indexOf(written, source.getExifSegment(300, 200))).isGreaterThan(0);
+        // Little endian PixelXDimension LONG 300 and PixelYDimension SHORT 200 entries
+        assertThat(indexOf(written, new byte[] { 0x02, (byte) 0xA0, 4, 0, 1, 0, 0, 0, 44, 1, 0, 0 })).isGreaterThan(0);
+        assertThat(indexOf(written, new byte[] { 0x03, (byte) 0xA0, 3, 0, 1, 0, 0, 0, (byte) 200, 0 })).isGreaterThan(0);
+    }
+
+    public void testMetadataGoesAfterJfif() throws Exception {
+        JpegMetadata source = read(withIcc(jpeg(exif(false, 1, 0), 4000, 3000)));
+
+        byte[] written = write(source, true, encoded(300, 200));
+
+        final int jfif = indexOf(written, JFIF);
+        final int exif = indexOf(written, "Exif".getBytes());
+        final int icc = indexOf(written, ICC_PROFILE);
+        assertThat(jfif).isGreaterThan(0);
+        assertThat(exif).isGreaterThan(jfif);
+        assertThat(icc).isGreaterThan(exif);
+        assertThat(written.length).isEqualTo(encoded(300, 200).length
+                                             + source.getExifSegment(300, 200).length + 4 + ICC_PROFILE.length);
+    }
+
+    public void testOnlyIccProfileIsCopiedWithoutExif() throws Exception {
+        JpegMetadata source = read(withIcc(jpeg(exif(false, 6, 0), 4000, 3000)));
+
+        byte[] written = write(source, false, encoded(300, 200));
+
+        assertThat(indexOf(written, ICC_PROFILE)).isGreaterThan(0);
+        assertThat(indexOf(written, "Exif".getBytes())).isEqualTo(-1);
+    }
+
+    public void testXmpOrientationIsMadeUpright() throws Exception {
+        JpegMetadata source = read(withXmp(jpeg(exif(false, 6, 0), 4000, 3000)));
+
+        byte[] written = write(source, true, encoded(300, 200));
+
+        assertThat(indexOf(written, "tiff:Orientation=\"1\"".getBytes())).isGreaterThan(0);
+        assertThat(indexOf(written, "<tiff:Orientation> 1 <".getBytes())).isGreaterThan(0);
+        assertThat(source.getXmpSegment().length).isEqualTo(4 + XMP.length);
+    }
+
+    public void testByteByByteWritesGiveSameOutput() throws Exception {
+        JpegMetadata source = read(withIcc(jpeg(exif(false, 1, 0), 4000, 3000)));
+        byte[] encoded = encoded(300, 200);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegMetadataOutputStream stream = new JpegMetadataOutputStream(out, source, true);
+
+        for (byte b : encoded) {
+            stream.write(b);
+        }
+        stream.close();
+
+        assertThat(out.toByteArray()).isEqualTo(write(source, true, encoded));
+    }
+
+    public void testNonJpegOutputIsUnchanged() throws Exception {
+        JpegMetadata source = read(withIcc(jpeg(exif(false, 1, 0), 4000, 3000)));
+        byte[] png = { (byte) 0x89, 'P', 'N', 'G', 13, 10, 26, 10, 0, 0 };
+
+        assertThat(write(source, true, png)).isEqualTo(png);
+    }
+
+    private static JpegMetadata read(byte[] jpeg) throws Exception {
+        return JpegMetadata.read(new ByteArrayInputStream(jpeg), true);
+    }
+
+    private static byte[] write(JpegMetadata metadata, boolean copyExif, byte[] encoded) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegMetadataOutputStream stream = new JpegMetadataOutputStream(out, metadata, copyExif);
+        stream.write(encoded, 0, encoded.length);
+        stream.close();
+        return out.toByteArray();
+    }
+
+    // What an encoder writes: SOI, JFIF, frame header, scan and some entropy-coded data
+    private static byte[] encoded(int width, int height) {
+        byte[] jpeg = jpeg(null, width, height);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        out.write(0xFF);
+        out.write(JpegMarker.APP0);
+        writeShort(out, JFIF.length + 2, false);
+        out.write(JFIF, 0, JFIF.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return concat(out.toByteArray(), new byte[] { 1, 2, 3, (byte) 0xFF, (byte) JpegMarker.EOI });
+    }
+
+    // Adds an APP2 ICC profile segment after SOI
+    private static byte[] withIcc(byte[] jpeg) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        out.write(0xFF);
+        out.write(JpegMarker.APP2);
+        writeShort(out, ICC_PROFILE.length + 2, false);
+        out.write(ICC_PROFILE, 0, ICC_PROFILE.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    // Adds an APP1 XMP segment after SOI
+    private static byte[] withXmp(byte[] jpeg) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        out.write(0xFF);
+        out.write(JpegMarker.APP1);
+        writeShort(out, XMP.length + 2, false);
+        out.write(XMP, 0, XMP.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,196 @@
+package com.soundcloud.android.crop.jpeg;
+
+import com.soundcloud.android.crop.BaseTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class JpegMetadataTest extends BaseTestCase {
+
+    // TIFF offset of the thumbnail written by exif(), after IFD0, the EXIF IFD and IFD1
+    static final int THUMBNAIL_START = 98;
+
+    public void testReadsOrientationAndSizeFromBigEndianExif() throws Exception {
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(jpeg(exif(false, 6, 0), 640, 480)));
+
+        assertThat(metadata.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_ROTATE_90);
+        assertThat(metadata.getWidth()).isEqualTo(640);
+        assertThat(metadata.getHeight()).isEqualTo(480);
+        assertThat(metadata.hasThumbnail()).isFalse();
+    }
+
+    public void testReadsMirroredOrientationFromLittleEndianExif() throws Exception {
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(jpeg(exif(true, 7, 0), 10, 20)));
+
+        assertThat(metadata.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_TRANSVERSE);
+    }
+
+    public void testThumbnailOffsetIsFromStartOfStream() throws Exception {
+        byte[] data = jpeg(exif(false, 1, 50), 10, 20);
+
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(data));
+
+        assertThat(metadata.hasThumbnail()).isTrue();
+        // SOI, APP1 marker and length, "Exif\0\0", then the TIFF offset of the thumbnail
+        assertThat(metadata.getThumbnailOffset()).isEqualTo(2 + 4 + 6 + THUMBNAIL_START);
+        assertThat(metadata.getThumbnailLength()).isEqualTo(50);
+    }
+
+    public void testMissingExifMeansNormalOrientation() throws Exception {
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(jpeg(null, 10, 20)));
+
+        assertThat(metadata.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_NORMAL);
+        assertThat(metadata.getWidth()).isEqualTo(10);
+    }
+
+    public void testOutOfRangeOrientationIsIgnored() throws Exception {
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(jpeg(exif(false, 9, 0), 10, 20)));
+
+        assertThat(metadata.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_NORMAL);
+    }
+
+    public void testOutOfRangeIfdPointersAreIgnored() throws Exception {
+        // IFD0 pointer, just past "Exif\0\0" and the TIFF header
+        byte[] exif = exif(false, 6, 0);
+        setInt(exif, 6 + 4, Integer.MAX_VALUE - 1);
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(jpeg(exif, 10, 20)));
+
+        assertThat(metadata.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_NORMAL);
+
+        // Value of the EXIF IFD pointer, the second entry of IFD0
+        exif = exif(false, 6, 0);
+        setInt(exif, 6 + 8 + 2 + 12 + 8, Integer.MAX_VALUE);
+        metadata = JpegMetadata.read(new ByteArrayInputStream(jpeg(exif, 10, 20)));
+
+        assertThat(metadata.getOrientation()).isEqualTo(JpegMetadata.ORIENTATION_ROTATE_90);
+    }
+
+    public void testStopsAtFirstScan() throws Exception {
+        byte[] data = jpeg(exif(false, 3, 0), 10, 20);
+        ByteArrayInputStream in = new ByteArrayInputStream(concat(data, new byte[256 * 1024]));
+
+        JpegMetadata.read(in);
+
+        // The entropy-coded data is never read, apart from what one buffer fill picks up
+        assertThat(in.available()).isGreaterThan(240 * 1024);
+    }
+
+    public void testNonJpegSourceIsRejected() throws Exception {
+        try {
+            JpegMetadata.read(new ByteArrayInputStream(new byte[] { (byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 0 }));
+            fail("Expected JpegException");
+        } catch (JpegException expected) {
+            // Callers treat the source as upright
+        }
+    }
+
+    // SOI, optional APP1, SOF0 with a single component, then an SOS marker
+    static byte[] jpeg(byte[] exif, int width, int height) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(JpegMarker.SOI);
+        if (exif != null) {
+            out.write(0xFF);
+            out.write(JpegMarker.APP1);
+            writeShort(out, exif.length + 2, false);
+            out.write(exif, 0, exif.length);
+        }
+        out.write(0xFF);
+        out.write(JpegMarker.SOF0);
+        writeShort(out, 11, false);
+        out.write(8);
+        writeShort(out, height, false);
+        writeShort(out, width, false);
+        out.write(1);
+        out.write(1);
+        out.write(0x11);
+        out.write(0);
+        out.write(0xFF);
+        out.write(JpegMarker.SOS);
+        return out.toByteArray();
+    }
+
+    /*
+     * EXIF payload with the orientation in IFD0, pixel dimensions of 4000x3000
+     * in the EXIF IFD and, if thumbnailLength > 0, a thumbnail at the end
+     */
+    static byte[] exif(boolean littleEndian, int orientation, int thumbnailLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        out.write(littleEndian ? 'I' : 'M');
+        out.write(littleEndian ? 'I' : 'M');
+        writeShort(out, 42, littleEndian);
+        writeInt(out, 8, littleEndian);
+        // IFD0 at 8, the EXIF IFD at 38, IFD1 at 68
+        writeShort(out, 2, littleEndian);
+        writeEntry(out, 0x0112, 3, orientation, littleEndian);
+        writeEntry(out, 0x8769, 4, 38, littleEndian);
+        writeInt(out, thumbnailLength > 0 ? 68 : 0, littleEndian);
+        writeShort(out, 2, littleEndian);
+        writeEntry(out, 0xA002, 4, 4000, littleEndian);
+        writeEntry(out, 0xA003, 3, 3000, littleEndian);
+        writeInt(out, 0, littleEndian);
+        if (thumbnailLength > 0) {
+            writeShort(out, 2, littleEndian);
+            writeEntry(out, 0x0201, 4, THUMBNAIL_START, littleEndian);
+            writeEntry(out, 0x0202, 4, thumbnailLength, littleEndian);
+            writeInt(out, 0, littleEndian);
+            out.write(new byte[thumbnailLength], 0, thumbnailLength);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int tag, int type, int value, boolean littleEndian) {
+        writeShort(out, tag, littleEndian);
+        writeShort(out, type, littleEndian);
+        writeInt(out, 1, littleEndian);
+        if (type == 3) {
+            writeShort(out, value, littleEndian);
+            writeShort(out, 0, littleEndian);
+        } else {
+            writeInt(out, value, littleEndian);
+        }
+    }
+
+    static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        } else {
+            out.write((value >> 8) & 0xFF);
+            out.write(value & 0xFF);
+        }
+    }
+
+    // Big-endian, like exif(false, ...)
+    private static void setInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value & 0xFFFF, true);
+            writeShort(out, value >>> 16, true);
+        } else {
+            writeShort(out, value >>> 16, false);
+            writeShort(out, value & 0xFFFF, false);
+        }
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
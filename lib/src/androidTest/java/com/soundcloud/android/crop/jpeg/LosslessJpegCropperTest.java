@@ -0,0 +1,94 @@
+package com.soundcloud.android.crop.jpeg;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import com.soundcloud.android.crop.BaseTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LosslessJpegCropperTest extends BaseTestCase {
+
+    public void testCropOriginSnapsToMcuGrid() throws Exception {
+        LosslessJpegCropper cropper = new LosslessJpegCropper(new ByteArrayInputStream(compress(100, 80)));
+        final int mcuWidth = cropper.getMcuWidth();
+        final int mcuHeight = cropper.getMcuHeight();
+
+        cropper.crop(13, 21, 60, 70, new ByteArrayOutputStream());
+
+        assertThat(cropper.getCropLeft()).isEqualTo(13 / mcuWidth * mcuWidth);
+        assertThat(cropper.getCropTop()).isEqualTo(21 / mcuHeight * mcuHeight);
+        assertThat(cropper.getCropLeft() + cropper.getCropWidth()).isEqualTo(60);
+        assertThat(cropper.getCropTop() + cropper.getCropHeight()).isEqualTo(70);
+    }
+
+    public void testCroppedJpegDecodesWithCropSize() throws Exception {
+        LosslessJpegCropper cropper = new LosslessJpegCropper(new ByteArrayInputStream(compress(100, 80)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        cropper.crop(32, 16, 90, 75, out);
+
+        Bitmap cropped = BitmapFactory.decodeByteArray(out.toByteArray(), 0, out.size());
+        assertThat(cropped).isNotNull();
+        assertThat(cropped.getWidth()).isEqualTo(58);
+        assertThat(cropped.getHeight()).isEqualTo(59);
+    }
+
+    public void testRotationSwapsOutputSize() throws Exception {
+        LosslessJpegCropper cropper = new LosslessJpegCropper(new ByteArrayInputStream(compress(96, 64)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        cropper.crop(0, 0, 96, 64, JpegTransform.ROTATE_90, out);
+
+        Bitmap rotated = BitmapFactory.decodeByteArray(out.toByteArray(), 0, out.size());
+        assertThat(rotated.getWidth()).isEqualTo(64);
+        assertThat(rotated.getHeight()).isEqualTo(96);
+    }
+
+    public void testMirroredEdgeGrowsToMcuGrid() throws Exception {
+        LosslessJpegCropper cropper = new LosslessJpegCropper(new ByteArrayInputStream(compress(96, 64)));
+        final int mcuWidth = cropper.getMcuWidth();
+
+        cropper.crop(5, 0, 40, 64, JpegTransform.FLIP_HORIZONTAL, new ByteArrayOutputStream());
+
+        assertThat(cropper.getCropLeft()).isEqualTo(5);
+        assertThat((cropper.getCropLeft() + cropper.getCropWidth()) % mcuWidth).isEqualTo(0);
+        assertThat(cropper.getCropLeft() + cropper.getCropWidth()).isGreaterThanOrEqualTo(40);
+    }
+
+    public void testExifOrientationMapsToTransform() {
+        assertThat(JpegTransform.fromExifOrientation(1)).isEqualTo(JpegTransform.NONE);
+        assertThat(JpegTransform.fromExifOrientation(6)).isEqualTo(JpegTransform.ROTATE_90);
+        assertThat(JpegTransform.fromExifOrientation(8)).isEqualTo(JpegTransform.ROTATE_270);
+        assertThat(JpegTransform.fromExifOrientation(5)).isEqualTo(JpegTransform.TRANSPOSE);
+    }
+
+    public void testNonJpegSourceIsRejected() throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+
+        try {
+            new LosslessJpegCropper(new ByteArrayInputStream(png.toByteArray()));
+            fail("Expected JpegException");
+        } catch (JpegException expected) {
+            // Callers fall back to decoding the source
+        }
+    }
+
+    private static byte[] compress(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                bitmap.setPixel(x, y, Color.rgb(x * 255 / width, y * 255 / height, (x ^ y) & 0xFF));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        return out.toByteArray();
+    }
+}
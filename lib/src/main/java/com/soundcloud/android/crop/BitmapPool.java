@@ -0,0 +1,216 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Process wide pool of mutable bitmaps, handed to the decoders through
+ * BitmapFactory.Options.inBitmap so that repeated crops reuse the same memory
+ * instead of allocating and garbage collecting large bitmaps.
+ *
+ * Bitmaps are bucketed by their byte size and evicted least recently pooled
+ * first once the pool holds more than its byte budget. Before KitKat a
+ * bitmap can only be reused for exactly the same size and config.
+ */
+class BitmapPool {
+
+    private static final boolean REUSE_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    private static final boolean REUSE_ANY_SIZE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    private static final boolean REUSE_FOR_REGIONS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    // A pooled bitmap may be at most this many times bigger than the request
+    private static final int MAX_SIZE_MULTIPLE = 2;
+    // Share of the heap the pool may hold on to
+    private static final int POOL_MEMORY_FRACTION = 8;
+
+    private static BitmapPool sInstance;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+    private final LinkedHashSet<Bitmap> mLruOrder = new LinkedHashSet<Bitmap>();
+    private final long mMaxBytes;
+    private long mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    static synchronized BitmapPool get() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / POOL_MEMORY_FRACTION);
+        }
+        return sInstance;
+    }
+
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return A pooled bitmap that can hold width x height pixels of config, or null
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        return take(width, height, config, !REUSE_ANY_SIZE);
+    }
+
+    /**
+     * Like {@link #get(int, int, Bitmap.Config)}, but allocates a new bitmap on a miss
+     */
+    Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        reconfigure(bitmap, width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap that is no longer used to the pool. Bitmaps that cannot
+     * be reused are recycled right away.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mLruOrder.contains(bitmap)) {
+            return;
+        }
+        final int size = allocationSize(bitmap);
+        if (!REUSE_SUPPORTED || !bitmap.isMutable() || size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mLruOrder.add(bitmap);
+        mBytes += size;
+        trimTo(mMaxBytes);
+    }
+
+    /**
+     * Points options.inBitmap at a pooled bitmap for a decode of the given size
+     * and makes the result mutable, so it can come back to the pool later.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    void prepareDecode(BitmapFactory.Options options, int width, int height) {
+        if (!REUSE_SUPPORTED) {
+            return;
+        }
+        final Bitmap.Config config = options.inPreferredConfig != null
+                                     ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        if (REUSE_ANY_SIZE || options.inSampleSize <= 1) {
+            // Older versions only reuse bitmaps for decodes without sampling
+            options.inBitmap = get(width, height, config);
+        }
+    }
+
+    /**
+     * BitmapRegionDecoder draws into inBitmap without resizing it, so the
+     * pooled bitmap has to match the decoded region exactly.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    void prepareRegionDecode(BitmapFactory.Options options, int width, int height) {
+        if (!REUSE_FOR_REGIONS) {
+            return;
+        }
+        final Bitmap.Config config = options.inPreferredConfig != null
+                                     ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = take(width, height, config, true);
+    }
+
+    synchronized void clear() {
+        trimTo(0);
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    synchronized int getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[" + mBytes + "/" + mMaxBytes + " bytes, hits=" + mHits
+                + ", misses=" + mMisses + ", evictions=" + mEvictions + "]";
+    }
+
+    private void trimTo(long maxBytes) {
+        Iterator<Bitmap> it = mLruOrder.iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Bitmap eldest = it.next();
+            it.remove();
+            final int size = allocationSize(eldest);
+            ArrayList<Bitmap> bucket = mBuckets.get(size);
+            bucket.remove(eldest);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+            mBytes -= size;
+            mEvictions++;
+            eldest.recycle();
+        }
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config, boolean exact) {
+        if (!REUSE_SUPPORTED) {
+            return null;
+        }
+        final int needed = width * height * DecodePlanner.bytesPerPixel(config);
+        Integer size = mBuckets.ceilingKey(needed);
+        while (size != null && size <= needed * MAX_SIZE_MULTIPLE) {
+            ArrayList<Bitmap> bucket = mBuckets.get(size);
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Bitmap candidate = bucket.get(i);
+                if (!exact || fits(candidate, width, height, config)) {
+                    bucket.remove(i);
+                    if (bucket.isEmpty()) {
+                        mBuckets.remove(size);
+                    }
+                    mLruOrder.remove(candidate);
+                    mBytes -= size;
+                    mHits++;
+                    return candidate;
+                }
+            }
+            size = mBuckets.higherKey(size);
+        }
+        mMisses++;
+        return null;
+    }
+
+    private static boolean fits(Bitmap candidate, int width, int height, Bitmap.Config config) {
+        return candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (REUSE_ANY_SIZE) {
+            bitmap.reconfigure(width, height, config);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int allocationSize(Bitmap bitmap) {
+        if (REUSE_ANY_SIZE) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -6,6 +6,7 @@ import android.app.Fragment;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.MediaStore;
@@ -20,7 +21,10 @@ import com.soundcloud.android.crop.util.VisibleForTesting;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Builder for crop Intents and utils for handling result
@@ -36,10 +40,21 @@ public class Crop {
         String ASPECT_Y = "aspect_y";
         String MAX_X = "max_x";
         String MAX_Y = "max_y";
+        String LOSSLESS_JPEG = "lossless_jpeg";
+        String KEEP_EXIF = "keep_exif";
+        String OUTPUT_URIS = "output_uris";
+        String OUTPUT_SIZES = "output_sizes";
+        String OUTPUT_FORMATS = "output_formats";
+        String OUTPUT_QUALITIES = "output_qualities";
+        String OUTPUTS = "outputs";
         String ERROR = "error";
     }
 
     private Intent cropIntent;
+    private ArrayList<Uri> outputUris = new ArrayList<Uri>();
+    private ArrayList<Integer> outputSizes = new ArrayList<Integer>();
+    private ArrayList<String> outputFormats = new ArrayList<String>();
+    private ArrayList<Integer> outputQualities = new ArrayList<Integer>();
 
     /**
      * Create a crop Intent builder with source image
@@ -94,6 +109,50 @@ public class Crop {
         return this;
     }
 
+    /**
+     * Crop JPEG sources without decoding and re-encoding them, when the result
+     * needs no scaling. Turning the image upright for its EXIF orientation is
+     * done losslessly as well. The top left corner of the crop area moves to
+     * the JPEG block grid, by up to 15 pixels.
+     */
+    public Crop withLosslessJpeg() {
+        cropIntent.putExtra(Extra.LOSSLESS_JPEG, true);
+        return this;
+    }
+
+    /**
+     * Copy the EXIF and XMP metadata of JPEG sources, such as the camera, date
+     * and location, to JPEG outputs. The ICC color profile is always copied.
+     */
+    public Crop withExif() {
+        cropIntent.putExtra(Extra.KEEP_EXIF, true);
+        return this;
+    }
+
+    /**
+     * Save an additional, scaled copy of the crop. Can be called several times,
+     * for example to save an avatar at 1024, 512, 128 and 64 pixels. The crop
+     * is decoded once and each size is scaled down from the next larger one.
+     *
+     * @param output Output image URI
+     * @param maxWidth Max width
+     * @param maxHeight Max height
+     * @param format Image format
+     * @param quality Compression quality, 0-100
+     */
+    public Crop addOutput(Uri output, int maxWidth, int maxHeight, Bitmap.CompressFormat format, int quality) {
+        outputUris.add(output);
+        outputSizes.add(maxWidth);
+        outputSizes.add(maxHeight);
+        outputFormats.add(format.name());
+        outputQualities.add(quality);
+        cropIntent.putParcelableArrayListExtra(Extra.OUTPUT_URIS, outputUris);
+        cropIntent.putIntegerArrayListExtra(Extra.OUTPUT_SIZES, outputSizes);
+        cropIntent.putStringArrayListExtra(Extra.OUTPUT_FORMATS, outputFormats);
+        cropIntent.putIntegerArrayListExtra(Extra.OUTPUT_QUALITIES, outputQualities);
+        return this;
+    }
+
     /**
      * Send the crop Intent!
      *
@@ -129,6 +188,17 @@ public class Crop {
         return result.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
     }
 
+    /**
+     * Retrieve URIs of all saved images, the output set in the Intent builder
+     * first, followed by the additional outputs in the order they were added
+     *
+     * @param result Result Intent
+     */
+    public static List<Uri> getOutputs(Intent result) {
+        List<Uri> outputs = result.getParcelableArrayListExtra(Extra.OUTPUTS);
+        return outputs != null ? outputs : Collections.<Uri>emptyList();
+    }
+
     /**
      * Retrieve error that caused crop to fail
      *
@@ -0,0 +1,164 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs many {@link CropEngine} crops at once, as many as the memory budget
+ * allows. Each crop is admitted with an estimate of the bitmap memory it
+ * peaks at, worked out from its crop area and outputs. {@link #submit}
+ * blocks while the crops already running use up the budget.
+ */
+public class CropBatch {
+
+    // Share of the heap a batch may fill with bitmaps
+    private static final int MEMORY_FRACTION = 2;
+
+    private final CropEngine engine;
+    private final ExecutorService executor;
+    private final long memoryBudget;
+
+    private final Object lock = new Object();
+    private long bytesInUse;
+    private int running;
+    private int completed;
+    private long startTime;
+    private long lastCompletionTime;
+
+    /**
+     * Batch using half the heap and one thread per core
+     */
+    public CropBatch(Context context) {
+        this(context, Runtime.getRuntime().maxMemory() / MEMORY_FRACTION,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param context Context
+     * @param memoryBudget Bytes of bitmaps the running crops may hold together
+     * @param threads Number of crops decoding at the same time
+     */
+    public CropBatch(Context context, long memoryBudget, int threads) {
+        this.engine = new CropEngine(context);
+        this.memoryBudget = memoryBudget;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "crop-batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a crop, waiting until there is memory for it. A crop bigger than
+     * the whole budget runs on its own.
+     *
+     * @return Future for the saved output URIs
+     * @throws InterruptedException If interrupted while waiting for memory
+     */
+    public Future<List<Uri>> submit(CropEngine.Request request) throws InterruptedException {
+        final long bytes = CropPipeline.estimatePeakBytes(request.region, request.outputs, 1);
+        final Callable<List<Uri>> job = engine.newJob(request);
+        acquire(bytes);
+        BatchTask task = new BatchTask(job, bytes);
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            release(bytes, false);
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Stop accepting crops. Crops already submitted still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getCompletedCount() {
+        synchronized (lock) {
+            return completed;
+        }
+    }
+
+    /**
+     * @return Crops finished per second, from the first submission to the last completion
+     */
+    public float getThroughput() {
+        synchronized (lock) {
+            final long elapsed = lastCompletionTime - startTime;
+            return elapsed > 0 ? completed * 1000f / elapsed : 0;
+        }
+    }
+
+    private void acquire(long bytes) throws InterruptedException {
+        synchronized (lock) {
+            if (startTime == 0) {
+                startTime = SystemClock.elapsedRealtime();
+            }
+            while (running > 0 && bytesInUse + bytes > memoryBudget) {
+                lock.wait();
+            }
+            bytesInUse += bytes;
+            running++;
+        }
+    }
+
+    private void release(long bytes, boolean ran) {
+        synchronized (lock) {
+            bytesInUse -= bytes;
+            running--;
+            if (ran) {
+                completed++;
+                lastCompletionTime = SystemClock.elapsedRealtime();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private class BatchTask extends FutureTask<List<Uri>> {
+
+        private final long bytes;
+        // Claimed by whichever of run() and an early cancel gives the memory back
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        BatchTask(Callable<List<Uri>> job, long bytes) {
+            super(job);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                release(bytes, true);
+            }
+        }
+
+        @Override
+        protected void done() {
+            // Cancelled before it started: run() will never give the memory back
+            if (started.compareAndSet(false, true)) {
+                release(bytes, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Crops images without showing {@link CropImageActivity}, for when the crop
+ * area is already known. Runs the same decode, scale and encode pipeline as
+ * the activity.
+ */
+public class CropEngine {
+
+    private static final int JPEG_QUALITY = 90;
+
+    private final Context context;
+
+    public CropEngine(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Start a crop on the given executor
+     *
+     * @param request What to crop and where to save it
+     * @param executor Executor the crop runs on
+     * @return Future for the saved output URIs, in the order they were added.
+     *         Cancelling it stops the crop at the next pipeline stage.
+     */
+    public Future<List<Uri>> submit(Request request, Executor executor) {
+        FutureTask<List<Uri>> task = new FutureTask<List<Uri>>(newJob(request));
+        executor.execute(task);
+        return task;
+    }
+
+    Callable<List<Uri>> newJob(Request request) {
+        return newJob(request, null);
+    }
+
+    /**
+     * @param listener Told on the crop thread as each pipeline stage starts, may be null
+     */
+    Callable<List<Uri>> newJob(final Request request, final CropPipeline.ProgressListener listener) {
+        if (request.outputs.isEmpty()) {
+            throw new IllegalArgumentException("No output set");
+        }
+        final ArrayList<CropPipeline.Output> outputs = new ArrayList<CropPipeline.Output>(request.outputs);
+        return new Callable<List<Uri>>() {
+            @Override
+            public List<Uri> call() throws Exception {
+                CropSource source = CropSource.open(context, request.source);
+                try {
+                    int orientation = request.exifOrientation;
+                    if (orientation == Request.ORIENTATION_FROM_EXIF) {
+                        orientation = CropUtil.getExifOrientation(CropUtil.readJpegMetadata(source));
+                    }
+                    CropPipeline pipeline = new CropPipeline(source, request.region, 1, orientation)
+                            .setLosslessJpeg(request.losslessJpeg)
+                            .setKeepExif(request.keepExif)
+                            .setProgressListener(listener);
+                    ArrayList<Uri> uris = new ArrayList<Uri>();
+                    for (CropPipeline.Output output : outputs) {
+                        pipeline.addOutput(output);
+                        uris.add(output.uri);
+                    }
+                    pipeline.run(context.getContentResolver());
+                    return Collections.unmodifiableList(uris);
+                } finally {
+                    source.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Builder for a single headless crop
+     */
+    public static class Request {
+
+        static final int ORIENTATION_FROM_EXIF = -1;
+
+        final Uri source;
+        final Rect region;
+        final ArrayList<CropPipeline.Output> outputs = new ArrayList<CropPipeline.Output>();
+        int exifOrientation = ORIENTATION_FROM_EXIF;
+        boolean losslessJpeg;
+        boolean keepExif;
+
+        /**
+         * @param source Source image URI
+         * @param region Crop area in the coordinates of the stored image, before any EXIF rotation
+         */
+        public Request(Uri source, Rect region) {
+            this.source = source;
+            this.region = new Rect(region);
+        }
+
+        /**
+         * Add an output. Without a max size the crop is saved at full resolution.
+         *
+         * @param output Output image URI
+         * @param maxWidth Max width, 0 for no limit
+         * @param maxHeight Max height, 0 for no limit
+         * @param format Image format
+         * @param quality Compression quality, 0-100
+         */
+        public Request output(Uri output, int maxWidth, int maxHeight, Bitmap.CompressFormat format, int quality) {
+            outputs.add(new CropPipeline.Output(output, maxWidth, maxHeight, format, quality));
+            return this;
+        }
+
+        /**
+         * Add a full resolution JPEG output
+         *
+         * @param output Output image URI
+         */
+        public Request output(Uri output) {
+            return output(output, 0, 0, Bitmap.CompressFormat.JPEG, JPEG_QUALITY);
+        }
+
+        /**
+         * Rotate the output clockwise, instead of using the orientation stored in the source EXIF data
+         *
+         * @param degrees 0, 90, 180 or 270
+         */
+        public Request withRotation(int degrees) {
+            switch ((degrees % 360 + 360) % 360) {
+                case 0:
+                    exifOrientation = ExifInterface.ORIENTATION_NORMAL;
+                    break;
+                case 90:
+                    exifOrientation = ExifInterface.ORIENTATION_ROTATE_90;
+                    break;
+                case 180:
+                    exifOrientation = ExifInterface.ORIENTATION_ROTATE_180;
+                    break;
+                case 270:
+                    exifOrientation = ExifInterface.ORIENTATION_ROTATE_270;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + degrees);
+            }
+            return this;
+        }
+
+        /**
+         * See {@link Crop#withLosslessJpeg()}
+         */
+        public Request withLosslessJpeg() {
+            losslessJpeg = true;
+            return this;
+        }
+
+        /**
+         * See {@link Crop#withExif()}
+         */
+        public Request withExif() {
+            keepExif = true;
+            return this;
+        }
+    }
+}
@@ -17,61 +17,105 @@
 package com.soundcloud.android.crop;
 
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.app.ProgressDialog;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.Window;
 
+import com.soundcloud.android.crop.jpeg.JpegMetadata;
 import com.soundcloud.android.crop.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.concurrent.CountDownLatch;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 
 /*
  * Modified from original in AOSP.
  */
 public class CropImageActivity extends MonitoredActivity {
 
+    // Largest preview edge, zooming in further is drawn from tiles
     private static final int MAX_TEXTURE_SIZE = 2000;
     private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int JPEG_QUALITY = 90;
+    // Share of the memory class the preview bitmap may take
+    private static final int PREVIEW_MEMORY_FRACTION = 4;
+    // Screens worth of tiles kept in memory while zoomed in
+    private static final int TILE_CACHE_SCREENS = 3;
+    // Sample size of the quick preview shown while the full one decodes
+    private static final int PLACEHOLDER_SAMPLE_SIZE = 16;
+    // EXIF thumbnails further off the picture's aspect ratio than this are letterboxed
+    private static final float THUMBNAIL_ASPECT_TOLERANCE = 0.02F;
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
+    private static final String PREVIEW_EXIF_THUMBNAIL = "exif-thumbnail";
+    private static final String PREVIEW_SAMPLED = "sampled";
+    private static final String PREVIEW_FULL = "full";
+    private static final String PREVIEW_CACHED = "cached";
+    private static final String PREVIEW_DISK_CACHED = "disk-cached";
+    // Crop area in the coordinates of the upright full size image
+    private static final String STATE_CROP_RECT = "crop_rect";
     private static final boolean IN_MEMORY_CROP = Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1;
 
     private final Handler mHandler = new Handler();
+    private final CropMetrics mMetrics = new CropMetrics();
+    private long mStartTime;
 
     private int mAspectX;
     private int mAspectY;
     private int sampleSize = 1;
+    private Bitmap.Config mPreviewConfig = Bitmap.Config.ARGB_8888;
 
     // Output image size
     private int mMaxX;
     private int mMaxY;
     private int mExifRotation;
+    private int mExifOrientation;
+    // Mirrored EXIF orientations are previewed mirrored and then rotated by mExifRotation
+    private boolean mExifFlipped;
+    private boolean mLosslessJpeg;
+    private boolean mKeepExif;
 
     private Uri mSourceUri;
+    private CropSource mSource;
+    private JpegMetadata mMetadata; // Null unless the source is a JPEG
+    private PreviewCache.Key mPreviewKey; // Null if the preview cannot be cached
+    private int mSourceWidth;
+    private int mSourceHeight;
     private Uri mSaveUri;
+    private final ArrayList<CropPipeline.Output> mOutputs = new ArrayList<CropPipeline.Output>();
 
     private boolean mIsSaving; // When the save button has been clicked
+    private boolean mSavePending; // Save clicked before the full preview was shown
+    private ProgressDialog mSaveDialog;
 
     private RotateBitmap mRotateBitmap;
+    private String mFirstPreview;
+    private DecodePlanner.Plan mPendingPreview; // Full preview still decoding, null once shown
     private CropImageView mImageView;
     private HighlightView mCrop;
+    private RectF mSavedCropRect;
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate( icicle );
+        mStartTime = SystemClock.elapsedRealtime();
+        if (icicle != null) {
+            mSavedCropRect = icicle.getParcelable( STATE_CROP_RECT );
+        }
         requestWindowFeature( Window.FEATURE_NO_TITLE );
         setContentView( R.layout.crop__activity_crop );
         initViews();
@@ -82,6 +126,9 @@ public class CropImageActivity extends MonitoredActivity {
             return;
         }
         startCrop();
+        if (mPendingPreview != null) {
+            loadFullPreview( mPendingPreview );
+        }
     }
 
     private void initViews() {
@@ -90,8 +137,10 @@ public class CropImageActivity extends MonitoredActivity {
         mImageView.setRecycler( new ImageViewTouchBase.Recycler() {
             @Override
             public void recycle(Bitmap b) {
-                b.recycle();
-                System.gc();
+                // The preview itself goes to the preview cache when the activity is done with it
+                if (mRotateBitmap == null || b != mRotateBitmap.getBitmap()) {
+                    BitmapPool.get().put( b );
+                }
             }
         } );
 
@@ -109,6 +158,21 @@ public class CropImageActivity extends MonitoredActivity {
         } );
     }
 
+    private void readAdditionalOutputs(Bundle extras) {
+        ArrayList<Uri> uris = extras.getParcelableArrayList( Crop.Extra.OUTPUT_URIS );
+        ArrayList<Integer> sizes = extras.getIntegerArrayList( Crop.Extra.OUTPUT_SIZES );
+        ArrayList<String> formats = extras.getStringArrayList( Crop.Extra.OUTPUT_FORMATS );
+        ArrayList<Integer> qualities = extras.getIntegerArrayList( Crop.Extra.OUTPUT_QUALITIES );
+        if (uris == null || sizes == null || formats == null || qualities == null) {
+            return;
+        }
+        for (int i = 0; i < uris.size(); i++) {
+            mOutputs.add( new CropPipeline.Output( uris.get( i ), sizes.get( i * 2 ), sizes.get( i * 2 + 1 ),
+                                                   Bitmap.CompressFormat.valueOf( formats.get( i ) ),
+                                                   qualities.get( i ) ) );
+        }
+    }
+
     private void setupFromIntent() {
         Intent intent = getIntent();
         Bundle extras = intent.getExtras();
@@ -118,15 +182,44 @@ public class CropImageActivity extends MonitoredActivity {
             mAspectY = extras.getInt( Crop.Extra.ASPECT_Y );
             mMaxX = extras.getInt( Crop.Extra.MAX_X );
             mMaxY = extras.getInt( Crop.Extra.MAX_Y );
+            mLosslessJpeg = extras.getBoolean( Crop.Extra.LOSSLESS_JPEG );
+            mKeepExif = extras.getBoolean( Crop.Extra.KEEP_EXIF );
             mSaveUri = extras.getParcelable( MediaStore.EXTRA_OUTPUT );
+            if (mSaveUri != null) {
+                mOutputs.add( new CropPipeline.Output( mSaveUri, mMaxX, mMaxY,
+                                                       Bitmap.CompressFormat.JPEG, JPEG_QUALITY ) );
+            }
+            readAdditionalOutputs( extras );
         }
 
         sampleSize = 1;
         mSourceUri = intent.getData();
         if (mSourceUri != null) {
-            mExifRotation = CropUtil.getExifRotation( CropUtil.getFromMediaUri( getContentResolver(), mSourceUri ) );
             try {
-                mRotateBitmap = loadInSampleSize();
+                mSource = CropSource.open( this, mSourceUri );
+                mMetadata = CropUtil.readJpegMetadata( mSource );
+                mExifOrientation = CropUtil.getExifOrientation( mMetadata );
+                mExifRotation = CropUtil.getExifRotation( mExifOrientation );
+                mExifFlipped = CropUtil.isExifFlipped( mExifOrientation );
+                mPreviewKey = PreviewCache.Key.of( mSourceUri, mSource );
+                if (mPreviewKey != null
+                    && (showCachedPreview( PreviewCache.get().take( mPreviewKey ), PREVIEW_CACHED )
+                        || showCachedPreview( PreviewDiskCache.get( this ).load( mPreviewKey, mExifOrientation ),
+                                              PREVIEW_DISK_CACHED ))) {
+                    return;
+                }
+                DecodePlanner.Plan plan = planPreview();
+                if (plan.sampleSize < PLACEHOLDER_SAMPLE_SIZE) {
+                    mRotateBitmap = loadPlaceholder( plan );
+                }
+                if (mRotateBitmap != null) {
+                    mPendingPreview = plan;
+                } else {
+                    mRotateBitmap = loadPreview( plan );
+                    storePreview( mRotateBitmap.getBitmap() );
+                    mFirstPreview = PREVIEW_FULL;
+                    onFullPreviewShown();
+                }
             } catch (IOException ioe) {
                 setResultException( ioe );
             } catch (OutOfMemoryError e) {
@@ -135,57 +228,253 @@ public class CropImageActivity extends MonitoredActivity {
         }
     }
 
-    private RotateBitmap loadInSampleSize() throws IOException {
+    private boolean showCachedPreview(PreviewCache.Entry cached, String firstPreview) {
+        if (cached == null) {
+            return false;
+        }
+        mSourceWidth = cached.sourceWidth;
+        mSourceHeight = cached.sourceHeight;
+        sampleSize = cached.sampleSize;
+        mPreviewConfig = cached.bitmap.getConfig();
+        mRotateBitmap = new RotateBitmap( cached.bitmap, mExifRotation, mExifFlipped );
+        mFirstPreview = firstPreview;
+        onFullPreviewShown();
+        return true;
+    }
+
+    private DecodePlanner.Plan planPreview() throws IOException {
+        // JPEGs have no alpha channel
+        boolean opaque = mMetadata != null;
+        if (mMetadata != null && mMetadata.getWidth() > 0 && mMetadata.getHeight() > 0) {
+            // Already known from the JPEG header, no need for a bounds decode
+            mSourceWidth = mMetadata.getWidth();
+            mSourceHeight = mMetadata.getHeight();
+        } else {
+            InputStream is = null;
+            BitmapFactory.Options bounds;
+            try {
+                is = mSource.openStream();
+                bounds = DecodePlanner.decodeBounds( is );
+            } finally {
+                CropUtil.closeSilently( is );
+            }
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                throw new IOException( "Cannot read image bounds: " + mSourceUri );
+            }
+            mSourceWidth = bounds.outWidth;
+            mSourceHeight = bounds.outHeight;
+            opaque |= JPEG_MIME_TYPE.equals( bounds.outMimeType );
+        }
+
+        DecodePlanner planner = newPreviewPlanner();
+        DecodePlanner.Plan plan = planner.plan( mSourceWidth, mSourceHeight, opaque );
+        sampleSize = plan.sampleSize;
+        mPreviewConfig = plan.config;
+        mMetrics.onPreviewPlanned( plan );
+        return plan;
+    }
+
+    /*
+     * Sizes the preview for the view rather than the largest texture. With tiles
+     * the preview only has to fill the view, zooming in shows the tiles. Without
+     * them it has to stay sharp up to the largest zoom, and the crop is cut from
+     * an image of the same sample size too.
+     */
+    private DecodePlanner newPreviewPlanner() {
+        int viewWidth = mImageView.getWidth();
+        int viewHeight = mImageView.getHeight();
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            // Not laid out yet, the view fills the screen below the button bar
+            DisplayMetrics display = getResources().getDisplayMetrics();
+            viewWidth = display.widthPixels;
+            viewHeight = display.heightPixels - getResources().getDimensionPixelSize( R.dimen.crop__bar_height );
+        }
+        if (mExifRotation % 180 != 0) {
+            // The planner works on the stored image, which is shown on its side
+            int swap = viewWidth;
+            viewWidth = viewHeight;
+            viewHeight = swap;
+        }
+        final float zoom = IN_MEMORY_CROP ? ImageViewTouchBase.MAX_ZOOM : 1F;
+        ActivityManager am = (ActivityManager) getSystemService( ACTIVITY_SERVICE );
+        final long memoryClass = Math.min( am.getMemoryClass() * 1024L * 1024L, Runtime.getRuntime().maxMemory() );
+        return new DecodePlanner( MAX_TEXTURE_SIZE, (int) (viewWidth * zoom), (int) (viewHeight * zoom),
+                                  memoryClass / PREVIEW_MEMORY_FRACTION );
+    }
+
+    // Called on the background job thread when the preview is loaded progressively
+    private RotateBitmap loadPreview(DecodePlanner.Plan plan) throws IOException {
+        BitmapFactory.Options options = plan.toOptions();
+        BitmapPool.get().prepareDecode( options, plan.getWidth(), plan.getHeight() );
+        Bitmap b;
+        try {
+            b = decodePreview( options );
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit the decoded image after all
+            BitmapPool.get().put( options.inBitmap );
+            options.inBitmap = null;
+            b = decodePreview( options );
+        }
+        if (b == null) {
+            BitmapPool.get().put( options.inBitmap );
+            throw new IOException( "Cannot decode image: " + mSourceUri );
+        }
+        return new RotateBitmap( b, mExifRotation, mExifFlipped );
+    }
+
+    /*
+     * Low resolution stand-in for the preview, so that the crop area can be
+     * placed before the full preview is decoded. Returns null if neither the
+     * EXIF thumbnail nor a sampled decode works.
+     */
+    private RotateBitmap loadPlaceholder(DecodePlanner.Plan plan) {
+        Bitmap b = decodeExifThumbnail( plan.config );
+        if (b != null) {
+            mFirstPreview = PREVIEW_EXIF_THUMBNAIL;
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = PLACEHOLDER_SAMPLE_SIZE;
+            options.inPreferredConfig = plan.config;
+            b = decodePreview( options );
+            mFirstPreview = PREVIEW_SAMPLED;
+        }
+        return b != null ? new RotateBitmap( b, mExifRotation, mExifFlipped ) : null;
+    }
+
+    private Bitmap decodeExifThumbnail(Bitmap.Config config) {
+        if (mMetadata == null || !mMetadata.hasThumbnail()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
         InputStream is = null;
+        Bitmap b;
         try {
-            is = getContentResolver().openInputStream( mSourceUri );
-            final BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inSampleSize = sampleSize;
-            Bitmap b = BitmapFactory.decodeStream( is, null, o );
-            if (b == null || b.getWidth() > MAX_TEXTURE_SIZE || b.getHeight() > MAX_TEXTURE_SIZE) {
-                if (b != null) {
-                    b.recycle();
+            is = mSource.openStream( mMetadata.getThumbnailOffset(), mMetadata.getThumbnailLength() );
+            b = BitmapFactory.decodeStream( is, null, options );
+        } finally {
+            CropUtil.closeSilently( is );
+        }
+        if (b == null) {
+            return null;
+        }
+        // A letterboxed thumbnail would not line up with the full preview
+        float thumbnailAspect = (float) b.getWidth() / b.getHeight();
+        float sourceAspect = (float) mSourceWidth / mSourceHeight;
+        if (Math.abs( thumbnailAspect / sourceAspect - 1 ) > THUMBNAIL_ASPECT_TOLERANCE) {
+            b.recycle();
+            return null;
+        }
+        return b;
+    }
+
+    private void loadFullPreview(final DecodePlanner.Plan plan) {
+        CropUtil.startBackgroundJob( this, new Runnable() {
+            public void run() {
+                try {
+                    final RotateBitmap preview = loadPreview( plan );
+                    storePreview( preview.getBitmap() );
+                    mHandler.post( new Runnable() {
+                        public void run() {
+                            if (isActivityDestroyed()) {
+                                // Most likely a rotation, the next activity can still use it
+                                cachePreview( preview.getBitmap() );
+                                return;
+                            }
+                            swapPreview( preview );
+                        }
+                    } );
+                } catch (IOException e) {
+                    onFullPreviewFailed( e );
+                } catch (OutOfMemoryError e) {
+                    onFullPreviewFailed( e );
                 }
-                throw new OutOfMemoryError();
             }
-            return new RotateBitmap( b, mExifRotation );
-        } catch (OutOfMemoryError oom) {
-            if (sampleSize == 16) {
-                throw oom;
-            } else {
-                sampleSize = sampleSize * 2;
-                return loadInSampleSize();
+        }, mHandler );
+    }
+
+    private void onFullPreviewFailed(final Throwable throwable) {
+        Log.e( "Error loading preview: " + throwable.getMessage(), throwable );
+        mHandler.post( new Runnable() {
+            public void run() {
+                if (isActivityDestroyed()) {
+                    return;
+                }
+                // The crop area cannot be mapped to the source without it
+                setResultException( throwable );
+                finish();
             }
+        } );
+    }
+
+    /*
+     * Replaces the placeholder with the full preview. The crop area is scaled
+     * along, so it keeps covering the same part of the picture, and the zoom
+     * is kept because both bitmaps have the same aspect ratio.
+     */
+    private void swapPreview(RotateBitmap preview) {
+        RotateBitmap placeholder = mRotateBitmap;
+        float scale = (float) preview.getWidth() / placeholder.getWidth();
+        mRotateBitmap = preview;
+        mPendingPreview = null;
+        // The image view hands the placeholder back to the pool
+        mImageView.setImageRotateBitmapResetBase( preview, false );
+
+        for (HighlightView hv : mImageView.mHighlightViews) {
+            RectF cropRect = scaleRect( hv.mCropRect, scale );
+            Rect imageRect = new Rect( 0, 0, preview.getWidth(), preview.getHeight() );
+            // Rounding can push the scaled area a fraction of a pixel outside the image
+            cropRect.offset( Math.min( 0, imageRect.right - cropRect.right ),
+                             Math.min( 0, imageRect.bottom - cropRect.bottom ) );
+            cropRect.intersect( 0, 0, imageRect.right, imageRect.bottom );
+            hv.setup( mImageView.getUnrotatedMatrix(), imageRect, cropRect, mAspectX != 0 && mAspectY != 0 );
+        }
+        mImageView.invalidate();
+        onFullPreviewShown();
+
+        if (mSavePending) {
+            mSavePending = false;
+            onSaveClicked();
+        }
+    }
+
+    private void onFullPreviewShown() {
+        mMetrics.onFullPreview( SystemClock.elapsedRealtime() - mStartTime );
+        if (!IN_MEMORY_CROP && sampleSize > 1) {
+            setupTiledPreview();
+        }
+    }
+
+    private Bitmap decodePreview(BitmapFactory.Options options) {
+        InputStream is = null;
+        try {
+            is = mSource.openStream();
+            return BitmapFactory.decodeStream( is, null, options );
         } finally {
             CropUtil.closeSilently( is );
         }
     }
 
+    @TargetApi(10)
+    private void setupTiledPreview() {
+        try {
+            BitmapRegionDecoder decoder = mSource.newRegionDecoder();
+            DisplayMetrics display = getResources().getDisplayMetrics();
+            long cacheBytes = (long) display.widthPixels * display.heightPixels
+                              * DecodePlanner.bytesPerPixel( mPreviewConfig ) * TILE_CACHE_SCREENS;
+            mImageView.setTileRenderer( new TileRenderer( mImageView, decoder, sampleSize, mPreviewConfig, cacheBytes ) );
+        } catch (IOException e) {
+            // Not fatal, zooming in just shows the sampled preview
+            Log.e( "Cannot create tile decoder: " + e.getMessage(), e );
+        }
+    }
+
     private void startCrop() {
         if (isFinishing()) {
             return;
         }
         mImageView.setImageRotateBitmapResetBase( mRotateBitmap, true );
-        CropUtil.startBackgroundJob( this, null, getResources().getString( R.string.crop__wait ),
-                                     new Runnable() {
-                                         public void run() {
-                                             final CountDownLatch latch = new CountDownLatch( 1 );
-                                             mHandler.post( new Runnable() {
-                                                 public void run() {
-                                                     if (mImageView.getScale() == 1F) {
-                                                         mImageView.center( true, true );
-                                                     }
-                                                     latch.countDown();
-                                                 }
-                                             } );
-                                             try {
-                                                 latch.await();
-                                             } catch (InterruptedException e) {
-                                                 throw new RuntimeException( e );
-                                             }
-                                             new Cropper().crop();
-                                         }
-                                     }, mHandler );
+        new Cropper().crop();
     }
 
     private class Cropper {
@@ -201,6 +490,18 @@ public class CropImageActivity extends MonitoredActivity {
 
             Rect imageRect = new Rect( 0, 0, width, height );
 
+            if (mSavedCropRect != null) {
+                // Recreated, put the crop area back where it was
+                RectF cropRect = scaleRect( mSavedCropRect, getPreviewScale() );
+                cropRect.intersect( 0, 0, width, height );
+                mSavedCropRect = null;
+                if (!cropRect.isEmpty()) {
+                    hv.setup( mImageView.getUnrotatedMatrix(), imageRect, cropRect, mAspectX != 0 && mAspectY != 0 );
+                    mImageView.add( hv );
+                    return;
+                }
+            }
+
             // Make the default size about 99%
             int cropWidth = Math.min( width, height ) * 99 / 100;
             @SuppressWarnings("SuspiciousNameCombination")
@@ -222,230 +523,211 @@ public class CropImageActivity extends MonitoredActivity {
             mImageView.add( hv );
         }
 
+        // Posted to the view so that it runs once the view has been laid out
         public void crop() {
-            mHandler.post( new Runnable() {
+            mImageView.post( new Runnable() {
                 public void run() {
+                    if (isActivityDestroyed()) {
+                        return;
+                    }
+                    if (mImageView.getScale() == 1F) {
+                        mImageView.center( true, true );
+                    }
                     makeDefault();
                     mImageView.invalidate();
                     if (mImageView.mHighlightViews.size() == 1) {
                         mCrop = mImageView.mHighlightViews.get( 0 );
                         mCrop.setFocus( true );
                     }
+                    mMetrics.onInteractive( mFirstPreview, SystemClock.elapsedRealtime() - mStartTime );
+                    mMetrics.log();
                 }
             } );
         }
     }
 
-    /*
-     * TODO
-     * This should use the decode/crop/encode single step API so that the whole
-     * (possibly large) Bitmap doesn't need to be read into memory
-     */
     private void onSaveClicked() {
         if (mCrop == null || mIsSaving) {
             return;
         }
+        if (mPendingPreview != null) {
+            // The crop area is only mapped to the source from the full preview
+            mSavePending = true;
+            return;
+        }
         mIsSaving = true;
-        Bitmap croppedImage = null;
-        Rect r = mCrop.getCropRect();
-        int width = r.width();
-        int height = r.height();
-
-        int outWidth = width, outHeight = height;
-        if (mMaxX > 0 && mMaxY > 0 && (width > mMaxX || height > mMaxY)) {
-            float ratio = (float) width / (float) height;
-            if ((float) mMaxX / (float) mMaxY > ratio) {
-                outHeight = mMaxY;
-                outWidth = (int) ((float) mMaxY * ratio + .5f);
-            } else {
-                outWidth = mMaxX;
-                outHeight = (int) ((float) mMaxX / ratio + .5f);
-            }
+        if (mOutputs.isEmpty()) {
+            finish();
+            return;
         }
-        if (IN_MEMORY_CROP && mRotateBitmap != null) {
-            croppedImage = inMemoryCrop( mRotateBitmap, croppedImage, r,
-                                         width * sampleSize,
-                                         height * sampleSize,
-                                         outWidth * sampleSize,
-                                         outHeight * sampleSize );
-            if (croppedImage != null) {
-                mImageView.setImageBitmapResetBase( croppedImage, true );
-                mImageView.center( true, true );
-                mImageView.mHighlightViews.clear();
-            }
-        } else {
-            try {
-                croppedImage = decodeRegionCrop( croppedImage, r );
-            } catch (IllegalArgumentException e) {
-                setResultException( e );
-                finish();
-                return;
-            }
-
-            if (croppedImage != null) {
-                mImageView.setImageRotateBitmapResetBase( new RotateBitmap( croppedImage, mExifRotation ), true );
-                mImageView.center( true, true );
-                mImageView.mHighlightViews.clear();
-            }
+        final CropPipeline pipeline = new CropPipeline( mSource,
+                                                        toSourceRect( mCrop.getCropRect(), mSourceWidth, mSourceHeight ),
+                                                        getOutputSampleSize(), mExifOrientation );
+        for (CropPipeline.Output output : mOutputs) {
+            pipeline.addOutput( output );
         }
-        if(croppedImage.getWidth() > mMaxX || croppedImage.getHeight() > mMaxY) {
-            croppedImage = getResizedBitmap(croppedImage, mMaxX, mMaxY);
+        pipeline.setLosslessJpeg( mLosslessJpeg )
+                .setKeepExif( mKeepExif )
+                .setProgressListener( new CropPipeline.ProgressListener() {
+                    public void onStage(final int stage) {
+                        mHandler.post( new Runnable() {
+                            public void run() {
+                                if (isActivityDestroyed()) {
+                                    return;
+                                }
+                                mSaveDialog.setMessage( getResources().getString( getStageMessage( stage ) ) );
+                            }
+                        } );
+                    }
+                } );
+
+        // Release memory now, the preview stays cached for a repeat crop while the heap allows
+        clearImageView();
+        Runtime runtime = Runtime.getRuntime();
+        if (pipeline.estimatePeakBytes() > runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) {
+            PreviewCache.get().clear();
         }
 
-        saveImage(croppedImage);
+        mSaveDialog = CropUtil.startBackgroundJob( this, null, getResources().getString( R.string.crop__saving ),
+                                                   new Runnable() {
+                                                       public void run() {
+                                                           saveOutput( pipeline );
+                                                       }
+                                                   }, mHandler );
     }
 
-    private Bitmap getResizedBitmap(Bitmap bm, int newHeight, int newWidth) {
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        float scaleWidth = ((float) newWidth) / width;
-        float scaleHeight = ((float) newHeight) / height;
-        Matrix matrix = new Matrix();
-        matrix.postScale(scaleWidth, scaleHeight);
-        return Bitmap.createBitmap(bm, 0, 0, width, height, matrix, false);
+    /*
+     * Outputs without a max size are saved at the largest size the texture
+     * size allows, as before the preview was sized for the view. The preview
+     * sample size depends on the screen and would shrink them on small ones.
+     */
+    private int getOutputSampleSize() {
+        return DecodePlanner.fitTextureSize( mSourceWidth, mSourceHeight, 1, MAX_TEXTURE_SIZE );
     }
 
-    private void saveImage(final Bitmap croppedImage) {
-
-        if (croppedImage != null) {
-            CropUtil.startBackgroundJob( this, null, getResources().getString( R.string.crop__saving ),
-                                         new Runnable() {
-                                             public void run() {
-                                                 saveOutput( croppedImage );
-                                             }
-                                         }, mHandler );
-        } else {
-            finish();
+    private static int getStageMessage(int stage) {
+        switch (stage) {
+            case CropPipeline.STAGE_DECODE:
+                return R.string.crop__decoding;
+            case CropPipeline.STAGE_SCALE:
+                return R.string.crop__scaling;
+            default:
+                return R.string.crop__saving;
         }
     }
 
-    @TargetApi(10)
-    private Bitmap decodeRegionCrop(Bitmap croppedImage, Rect rect) {
-        // Release memory now
-        clearImageView();
-
-        InputStream is = null;
+    // Runs on the background job thread
+    private void saveOutput(CropPipeline pipeline) {
         try {
-            is = getContentResolver().openInputStream( mSourceUri );
-            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance( is, false );
-            final int width = decoder.getWidth();
-            final int height = decoder.getHeight();
-
-            if (mExifRotation != 0) {
-                // Adjust crop area to account for image rotation
-                Matrix matrix = new Matrix();
-                matrix.setRotate( -mExifRotation );
-                rect = new Rect( (int) rect.left * sampleSize,
-                                 (int) rect.top * sampleSize,
-                                 (int) rect.right * sampleSize,
-                                 (int) rect.bottom * sampleSize );
-                RectF adjusted = new RectF();
-                matrix.mapRect( adjusted, new RectF( rect ) );
-                // Adjust to account for origin at 0,0
-                adjusted.offset( adjusted.left < 0 ? width : 0, adjusted.top < 0 ? height : 0 );
-                rect = new Rect( (int) adjusted.left,
-                                 (int) adjusted.top,
-                                 (int) adjusted.right,
-                                 (int) adjusted.bottom );
-            } else {
-                rect = new Rect( (int) rect.left * sampleSize,
-                                 (int) rect.top * sampleSize,
-                                 (int) rect.right * sampleSize,
-                                 (int) rect.bottom * sampleSize );
-            }
-
-            final BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inSampleSize = sampleSize;
-            try {
-                croppedImage = decoder.decodeRegion( rect, o );
-            } catch (OutOfMemoryError oom) {
-                setResultException( oom );
-            } catch (IllegalArgumentException e) {
-                // Rethrow with some extra information
-                throw new IllegalArgumentException( "Rectangle " + rect + " is outside of the image ("
-                                                    + width + "," + height + "," + mExifRotation + ")", e );
+            pipeline.run( getContentResolver() );
+            if (Thread.currentThread().isInterrupted()) {
+                return;
             }
+            setResultUris();
+        } catch (InterruptedIOException e) {
+            // The activity was destroyed and the job cancelled, nobody is waiting for a result
+            return;
         } catch (IOException e) {
+            setResultException( e );
             Log.e( "Error cropping picture: " + e.getMessage(), e );
-            finish();
-        } finally {
-            CropUtil.closeSilently( is );
+        } catch (IllegalArgumentException e) {
+            setResultException( e );
+        } catch (OutOfMemoryError e) {
+            setResultException( e );
         }
-        return croppedImage;
+        finish();
     }
 
-    private Bitmap inMemoryCrop(RotateBitmap rotateBitmap, Bitmap croppedImage, Rect r,
-                                int width, int height, int outWidth, int outHeight) {
-        // In-memory crop means potential OOM errors,
-        // but we have no choice as we can't selectively decode a bitmap with this API level
-        System.gc();
-
-        try {
-            croppedImage = Bitmap.createBitmap( outWidth, outHeight, Bitmap.Config.RGB_565 );
-
-            Canvas canvas = new Canvas( croppedImage );
-            RectF dstRect = new RectF( 0, 0, width, height );
-
-            Matrix m = new Matrix();
-            m.setRectToRect( new RectF( r ), dstRect, Matrix.ScaleToFit.FILL );
-            m.preConcat( rotateBitmap.getRotateMatrix() );
-            canvas.drawBitmap( rotateBitmap.getBitmap(), m, null );
-        } catch (OutOfMemoryError e) {
-            Log.e( "Error cropping picture: " + e.getMessage(), e );
-            System.gc();
+    // Maps a crop rectangle on the upright preview to the stored source image
+    private Rect toSourceRect(Rect rect, int width, int height) {
+        rect = new Rect( rect.left * sampleSize,
+                         rect.top * sampleSize,
+                         rect.right * sampleSize,
+                         rect.bottom * sampleSize );
+        if (mExifRotation != 0 || mExifFlipped) {
+            // Through the same transform the pipeline applies to the pixels, mirrors included
+            rect = CropUtil.toStoredRect( rect, mExifOrientation, width, height );
         }
-
-        // Release bitmap memory as soon as possible
-        clearImageView();
-        return croppedImage;
+        return rect;
     }
 
     private void clearImageView() {
+        mImageView.setTileRenderer( null );
         mImageView.clear();
+        releaseRotateBitmap();
+    }
+
+    // Hands the preview bitmap to the preview cache, or the pool if it is only a placeholder
+    private void releaseRotateBitmap() {
         if (mRotateBitmap != null) {
-            mRotateBitmap.recycle();
+            if (mPendingPreview == null) {
+                cachePreview( mRotateBitmap.getBitmap() );
+            } else {
+                BitmapPool.get().put( mRotateBitmap.getBitmap() );
+            }
+            mRotateBitmap.setBitmap( null );
         }
-        System.gc();
     }
 
-    private void saveOutput(final Bitmap croppedImage) {
-        if (mSaveUri != null) {
-            OutputStream outputStream = null;
-            try {
-                outputStream = getContentResolver().openOutputStream( mSaveUri );
-                if (outputStream != null) {
-                    if (mExifRotation != 0) {
-                        Matrix matrix = new Matrix();
-                        matrix.postRotate( mExifRotation );
-                        Bitmap rotated = Bitmap.createBitmap( croppedImage, 0, 0, croppedImage.getWidth(),
-                                                              croppedImage.getHeight(), matrix, true );
-                        rotated.compress( Bitmap.CompressFormat.JPEG, 90, outputStream );
-                    } else {
-                        croppedImage.compress( Bitmap.CompressFormat.JPEG, 90, outputStream );
-                    }
-                }
-            } catch (IOException e) {
-                setResultException( e );
-                Log.e( "Cannot open file: " + mSaveUri, e );
-            } finally {
-                CropUtil.closeSilently( outputStream );
-            }
-            setResultUri( mSaveUri );
+    // Writes a freshly decoded preview to disk, before anything else can get hold of the bitmap
+    private void storePreview(Bitmap preview) {
+        if (mPreviewKey != null) {
+            PreviewDiskCache.get( this ).store( mPreviewKey,
+                                                new PreviewCache.Entry( preview, sampleSize, mSourceWidth, mSourceHeight ),
+                                                mExifOrientation );
+        }
+    }
+
+    private void cachePreview(Bitmap preview) {
+        if (preview == null) {
+            return;
+        }
+        if (mPreviewKey != null) {
+            PreviewCache.get().put( mPreviewKey,
+                                    new PreviewCache.Entry( preview, sampleSize, mSourceWidth, mSourceHeight ) );
+        } else {
+            BitmapPool.get().put( preview );
+        }
+    }
+
+    // Size of the shown bitmap relative to the upright full size image
+    private float getPreviewScale() {
+        final int uprightWidth = mExifRotation % 180 == 0 ? mSourceWidth : mSourceHeight;
+        return (float) mRotateBitmap.getWidth() / uprightWidth;
+    }
+
+    private static RectF scaleRect(RectF rect, float scale) {
+        return new RectF( rect.left * scale, rect.top * scale, rect.right * scale, rect.bottom * scale );
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState( outState );
+        if (mCrop != null && mRotateBitmap != null && mRotateBitmap.getBitmap() != null) {
+            outState.putParcelable( STATE_CROP_RECT, scaleRect( mCrop.mCropRect, 1 / getPreviewScale() ) );
+        } else if (mSavedCropRect != null) {
+            // Recreated again before the crop area was placed
+            outState.putParcelable( STATE_CROP_RECT, mSavedCropRect );
         }
-        mHandler.post( new Runnable() {
-            public void run() {
-                mImageView.clear();
-                croppedImage.recycle();
-            }
-        } );
-        finish();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        PreviewCache.get().clear();
+        BitmapPool.get().clear();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mRotateBitmap != null) {
-            mRotateBitmap.recycle();
+        mImageView.setTileRenderer( null );
+        releaseRotateBitmap();
+        if (mSource != null) {
+            mMetrics.onSourceRead( mSource );
+            mMetrics.onBitmapPoolUsed( BitmapPool.get() );
+            mMetrics.log();
+            mSource.close();
         }
     }
 
@@ -458,8 +740,13 @@ public class CropImageActivity extends MonitoredActivity {
         return mIsSaving;
     }
 
-    private void setResultUri(Uri uri) {
-        setResult( RESULT_OK, new Intent().putExtra( MediaStore.EXTRA_OUTPUT, uri ) );
+    private void setResultUris() {
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        for (CropPipeline.Output output : mOutputs) {
+            uris.add( output.uri );
+        }
+        setResult( RESULT_OK, new Intent().putExtra( MediaStore.EXTRA_OUTPUT, mSaveUri )
+                                          .putParcelableArrayListExtra( Crop.Extra.OUTPUTS, uris ) );
     }
 
     private void setResultException(Throwable throwable) {
@@ -5,6 +5,8 @@ import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.ViewConfiguration;
 
 import java.util.ArrayList;
 
@@ -15,8 +17,24 @@ public class CropImageView extends ImageViewTouchBase {
     float mLastX, mLastY;
     int mMotionEdge;
 
+    // Image pan and pinch state, the focus is the middle of the pointers
+    private boolean mPanningImage;
+    private boolean mPinching;
+    private float mFocusX, mFocusY;
+    private float mSpan;
+    private float mLastSpan;
+    private VelocityTracker mVelocityTracker;
+
     Context mContext;
 
+    private static final float ZOOM_TO_CROP_MS = 300F;
+    private static final float PAN_TO_CROP_MS = 200F;
+
+    private TileRenderer mTileRenderer;
+    // Brought into view once the zoom towards it has finished
+    private HighlightView mPendingVisible;
+    private final float[] mTempPoint = new float[2];
+
     @SuppressWarnings("UnusedDeclaration")
     public CropImageView(Context context) {
         super(context);
@@ -50,7 +68,8 @@ public class CropImageView extends ImageViewTouchBase {
     @Override
     protected void zoomTo(float scale, float centerX, float centerY) {
         super.zoomTo(scale, centerX, centerY);
-        for (HighlightView hv : mHighlightViews) {
+        for (int i = 0; i < mHighlightViews.size(); i++) {
+            HighlightView hv = mHighlightViews.get(i);
             hv.mMatrix.set(getUnrotatedMatrix());
             hv.invalidate();
         }
@@ -59,7 +78,8 @@ public class CropImageView extends ImageViewTouchBase {
     @Override
     protected void zoomIn() {
         super.zoomIn();
-        for (HighlightView hv : mHighlightViews) {
+        for (int i = 0; i < mHighlightViews.size(); i++) {
+            HighlightView hv = mHighlightViews.get(i);
             hv.mMatrix.set(getUnrotatedMatrix());
             hv.invalidate();
         }
@@ -68,7 +88,8 @@ public class CropImageView extends ImageViewTouchBase {
     @Override
     protected void zoomOut() {
         super.zoomOut();
-        for (HighlightView hv : mHighlightViews) {
+        for (int i = 0; i < mHighlightViews.size(); i++) {
+            HighlightView hv = mHighlightViews.get(i);
             hv.mMatrix.set(getUnrotatedMatrix());
             hv.invalidate();
         }
@@ -77,7 +98,8 @@ public class CropImageView extends ImageViewTouchBase {
     @Override
     protected void postTranslate(float deltaX, float deltaY) {
         super.postTranslate(deltaX, deltaY);
-        for (HighlightView hv : mHighlightViews) {
+        for (int i = 0; i < mHighlightViews.size(); i++) {
+            HighlightView hv = mHighlightViews.get(i);
             hv.mMatrix.postTranslate(deltaX, deltaY);
             hv.invalidate();
         }
@@ -90,60 +112,162 @@ public class CropImageView extends ImageViewTouchBase {
             return false;
         }
 
-        switch (event.getAction()) {
+        final int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            stopAnimation();
+            if (mVelocityTracker == null) {
+                mVelocityTracker = VelocityTracker.obtain();
+            } else {
+                mVelocityTracker.clear();
+            }
+        }
+        if (mVelocityTracker != null) {
+            // Takes the historical samples of batched moves into account as well
+            mVelocityTracker.addMovement(event);
+        }
+
+        switch (action) {
         case MotionEvent.ACTION_DOWN:
-            for (HighlightView hv : mHighlightViews) {
+            mLastX = event.getX();
+            mLastY = event.getY();
+            for (int i = 0; i < mHighlightViews.size(); i++) {
+                HighlightView hv = mHighlightViews.get(i);
                 int edge = hv.getHit(event.getX(), event.getY());
                 if (edge != HighlightView.GROW_NONE) {
                     mMotionEdge = edge;
                     mMotionHighlightView = hv;
-                    mLastX = event.getX();
-                    mLastY = event.getY();
                     mMotionHighlightView.setMode((edge == HighlightView.MOVE)
                             ? HighlightView.ModifyMode.Move
                             : HighlightView.ModifyMode.Grow);
                     break;
                 }
             }
+            // Outside the crop area a drag pans the image
+            mPanningImage = mMotionHighlightView == null;
             break;
-        case MotionEvent.ACTION_UP:
+        case MotionEvent.ACTION_POINTER_DOWN:
+            // A second finger always zooms and pans the image, also when the first one held the crop area
             if (mMotionHighlightView != null) {
-                centerBasedOnHighlightView(mMotionHighlightView);
                 mMotionHighlightView.setMode(HighlightView.ModifyMode.None);
+                mMotionHighlightView = null;
+            }
+            mPanningImage = false;
+            mPinching = true;
+            computeFocus(event, -1);
+            mLastX = mFocusX;
+            mLastY = mFocusY;
+            mLastSpan = mSpan;
+            break;
+        case MotionEvent.ACTION_POINTER_UP:
+            computeFocus(event, event.getActionIndex());
+            mLastX = mFocusX;
+            mLastY = mFocusY;
+            mLastSpan = mSpan;
+            if (event.getPointerCount() == 2) {
+                // Carry on panning with the finger that is left
+                mPinching = false;
+                mPanningImage = true;
             }
-            mMotionHighlightView = null;
             break;
         case MotionEvent.ACTION_MOVE:
-            if (mMotionHighlightView != null) {
+            if (mPinching) {
+                computeFocus(event, -1);
+                final float scaleFactor = mLastSpan > 0 && mSpan > 0 ? mSpan / mLastSpan : 1F;
+                addGesture(scaleFactor, mFocusX, mFocusY, mFocusX - mLastX, mFocusY - mLastY);
+                mLastX = mFocusX;
+                mLastY = mFocusY;
+                mLastSpan = mSpan;
+            } else if (mMotionHighlightView != null) {
                 mMotionHighlightView.handleMotion(mMotionEdge, event.getX()
                         - mLastX, event.getY() - mLastY);
                 mLastX = event.getX();
                 mLastY = event.getY();
-                ensureVisible(mMotionHighlightView);
+                ensureVisible(mMotionHighlightView, false);
+                // if we're not zoomed then there's no point in even allowing
+                // the user to move the image around. This call to center puts
+                // it back to the normalized location (with false meaning don't
+                // animate).
+                if (getScale() == 1F) {
+                    center(true, true);
+                }
+            } else if (mPanningImage && getScale() > 1F) {
+                addGesture(1F, event.getX(), event.getY(), event.getX() - mLastX, event.getY() - mLastY);
+                mLastX = event.getX();
+                mLastY = event.getY();
             }
             break;
-        }
-
-        switch (event.getAction()) {
         case MotionEvent.ACTION_UP:
-            center(true, true);
-            break;
-        case MotionEvent.ACTION_MOVE:
-            // if we're not zoomed then there's no point in even allowing
-            // the user to move the image around. This call to center puts
-            // it back to the normalized location (with false meaning don't
-            // animate).
-            if (getScale() == 1F) {
+            if (mMotionHighlightView != null) {
+                centerBasedOnHighlightView(mMotionHighlightView);
+                mMotionHighlightView.setMode(HighlightView.ModifyMode.None);
                 center(true, true);
+            } else if (mPanningImage && getScale() > 1F) {
+                flingImage(event.getPointerId(0));
             }
+            endMotion();
+            break;
+        case MotionEvent.ACTION_CANCEL:
+            if (mMotionHighlightView != null) {
+                mMotionHighlightView.setMode(HighlightView.ModifyMode.None);
+            }
+            endMotion();
             break;
         }
-
         return true;
     }
 
+    private void flingImage(int pointerId) {
+        ViewConfiguration configuration = ViewConfiguration.get(getContext());
+        mVelocityTracker.computeCurrentVelocity(1000, configuration.getScaledMaximumFlingVelocity());
+        final float velocityX = mVelocityTracker.getXVelocity(pointerId);
+        final float velocityY = mVelocityTracker.getYVelocity(pointerId);
+        if (Math.hypot(velocityX, velocityY) >= configuration.getScaledMinimumFlingVelocity()) {
+            fling(velocityX, velocityY);
+        }
+    }
+
+    private void endMotion() {
+        mMotionHighlightView = null;
+        mPanningImage = false;
+        mPinching = false;
+        if (mVelocityTracker != null) {
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
+        }
+    }
+
+    /*
+     * Focus point of the pointers and their average distance from it, like
+     * ScaleGestureDetector, into mFocusX, mFocusY and mSpan. The pointer at
+     * skipIndex is left out, it is being lifted.
+     */
+    private void computeFocus(MotionEvent event, int skipIndex) {
+        final int count = event.getPointerCount();
+        final int used = skipIndex >= 0 ? count - 1 : count;
+        float sumX = 0;
+        float sumY = 0;
+        for (int i = 0; i < count; i++) {
+            if (i != skipIndex) {
+                sumX += event.getX(i);
+                sumY += event.getY(i);
+            }
+        }
+        mFocusX = sumX / used;
+        mFocusY = sumY / used;
+        float spanX = 0;
+        float spanY = 0;
+        for (int i = 0; i < count; i++) {
+            if (i != skipIndex) {
+                spanX += Math.abs(event.getX(i) - mFocusX);
+                spanY += Math.abs(event.getY(i) - mFocusY);
+            }
+        }
+        mSpan = 2 * (float) Math.hypot(spanX / used, spanY / used);
+    }
+
     // Pan the displayed image to make sure the cropping rectangle is visible.
-    private void ensureVisible(HighlightView hv) {
+    // While dragging this has to happen right away, to keep up with the finger.
+    private void ensureVisible(HighlightView hv, boolean animate) {
         Rect r = hv.mDrawRect;
 
         int panDeltaX1 = Math.max(0, getLeft() - r.left);
@@ -156,7 +280,11 @@ public class CropImageView extends ImageViewTouchBase {
         int panDeltaY = panDeltaY1 != 0 ? panDeltaY1 : panDeltaY2;
 
         if (panDeltaX != 0 || panDeltaY != 0) {
-            panBy(panDeltaX, panDeltaY);
+            if (animate) {
+                panBy(panDeltaX, panDeltaY, PAN_TO_CROP_MS);
+            } else {
+                panBy(panDeltaX, panDeltaY);
+            }
         }
     }
 
@@ -179,19 +307,55 @@ public class CropImageView extends ImageViewTouchBase {
         zoom = Math.max(1F, zoom);
 
         if ((Math.abs(zoom - getScale()) / zoom) > .1) {
-            float[] coordinates = new float[] { hv.mCropRect.centerX(), hv.mCropRect.centerY() };
+            float[] coordinates = mTempPoint;
+            coordinates[0] = hv.mCropRect.centerX();
+            coordinates[1] = hv.mCropRect.centerY();
             getUnrotatedMatrix().mapPoints(coordinates);
-            zoomTo(zoom, coordinates[0], coordinates[1], 300F);
+            zoomTo(zoom, coordinates[0], coordinates[1], ZOOM_TO_CROP_MS);
+            // Where it ends up is only known after the zoom
+            mPendingVisible = hv;
+            return;
+        }
+
+        ensureVisible(hv, true);
+    }
+
+    @Override
+    protected void onSuppMatrixChanged() {
+        for (int i = 0; i < mHighlightViews.size(); i++) {
+            HighlightView hv = mHighlightViews.get(i);
+            hv.mMatrix.set(getUnrotatedMatrix());
+            hv.invalidate();
+        }
+    }
+
+    @Override
+    protected void onAnimationFinished() {
+        HighlightView hv = mPendingVisible;
+        mPendingVisible = null;
+        if (hv != null) {
+            ensureVisible(hv, true);
         }
+    }
 
-        ensureVisible(hv);
+    // Tiles are drawn on top of the preview bitmap, pass null to go back to the preview only
+    void setTileRenderer(TileRenderer renderer) {
+        if (mTileRenderer != null && mTileRenderer != renderer) {
+            mTileRenderer.recycle();
+        }
+        mTileRenderer = renderer;
+        invalidate();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        for (HighlightView mHighlightView : mHighlightViews) {
-            mHighlightView.draw(canvas);
+        if (mTileRenderer != null && mBitmapDisplayed.getBitmap() != null) {
+            mTileRenderer.draw(canvas, getImageViewMatrix(), getImageViewInverseMatrix());
+        }
+        // Indexed, an iterator would be allocated on every frame
+        for (int i = 0; i < mHighlightViews.size(); i++) {
+            mHighlightViews.get(i).draw(canvas);
         }
     }
 
@@ -0,0 +1,88 @@
+package com.soundcloud.android.crop;
+
+import com.soundcloud.android.crop.util.Log;
+
+/*
+ * Collects what a single crop cost, so the numbers can be checked in the log
+ * (adb shell setprop log.tag.android-crop DEBUG).
+ */
+class CropMetrics {
+
+    int sourceWidth;
+    int sourceHeight;
+    int sampleSize;
+    String previewTarget;
+    long previewMemoryBudget;
+    String previewConfig;
+    String previewConfigReason;
+    int decodesSaved;
+    long sourceLength;
+    long bytesRead;
+    long bytesSpooled;
+    int poolHits;
+    int poolMisses;
+    int poolEvictions;
+    String firstPreview;
+    long timeToInteractive = -1;
+    long timeToFullPreview = -1;
+
+    void onPreviewPlanned(DecodePlanner.Plan plan) {
+        sourceWidth = plan.sourceWidth;
+        sourceHeight = plan.sourceHeight;
+        sampleSize = plan.sampleSize;
+        previewTarget = plan.targetWidth + "x" + plan.targetHeight;
+        previewMemoryBudget = plan.memoryBudget;
+        previewConfig = String.valueOf(plan.config);
+        previewConfigReason = plan.configReason;
+        decodesSaved = plan.decodesSaved;
+    }
+
+    void onSourceRead(CropSource source) {
+        sourceLength = source.getLength();
+        bytesRead = source.getBytesRead();
+        bytesSpooled = source.getSpooledBytes();
+    }
+
+    void onBitmapPoolUsed(BitmapPool pool) {
+        poolHits = pool.getHitCount();
+        poolMisses = pool.getMissCount();
+        poolEvictions = pool.getEvictionCount();
+    }
+
+    /**
+     * @param firstPreview What the crop area was first shown on
+     * @param millis Time from start until the crop area could be moved
+     */
+    void onInteractive(String firstPreview, long millis) {
+        this.firstPreview = firstPreview;
+        timeToInteractive = millis;
+    }
+
+    void onFullPreview(long millis) {
+        timeToFullPreview = millis;
+    }
+
+    void log() {
+        Log.d(toString());
+    }
+
+    @Override
+    public String toString() {
+        return "CropMetrics[source=" + sourceWidth + "x" + sourceHeight
+                + ", sampleSize=" + sampleSize
+                + ", previewTarget=" + previewTarget
+                + ", previewMemoryBudget=" + previewMemoryBudget
+                + ", previewConfig=" + previewConfig + " (" + previewConfigReason + ")"
+                + ", decodesSaved=" + decodesSaved
+                + ", sourceLength=" + sourceLength
+                + ", bytesRead=" + bytesRead
+                + ", bytesSpooled=" + bytesSpooled
+                + ", poolHits=" + poolHits
+                + ", poolMisses=" + poolMisses
+                + ", poolEvictions=" + poolEvictions
+                + ", firstPreview=" + firstPreview
+                + ", timeToInteractive=" + timeToInteractive
+                + ", timeToFullPreview=" + timeToFullPreview
+                + "]";
+    }
+}
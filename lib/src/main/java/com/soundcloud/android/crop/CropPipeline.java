@@ -0,0 +1,593 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+
+import com.soundcloud.android.crop.jpeg.JpegTransform;
+import com.soundcloud.android.crop.jpeg.JpegMetadata;
+import com.soundcloud.android.crop.jpeg.JpegMetadataOutputStream;
+import com.soundcloud.android.crop.jpeg.LosslessJpegCropper;
+import com.soundcloud.android.crop.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Turns a region of the source image into the saved outputs: decode, crop,
+ * scale, rotate and encode. Nothing here touches views, so it runs on a
+ * worker thread with the UI only listening for progress.
+ *
+ * Several outputs share one region decode. They are produced from the
+ * largest to the smallest, each one scaled down from the one before, and
+ * encoded in parallel while the next size is being scaled.
+ */
+class CropPipeline {
+
+    static final int STAGE_DECODE = 0;
+    static final int STAGE_SCALE = 1;
+    static final int STAGE_ENCODE = 2;
+
+    interface ProgressListener {
+        // Called on the pipeline thread as each stage starts
+        void onStage(int stage);
+    }
+
+    static class Output {
+
+        final Uri uri;
+        // Max size of the rotated output, 0 to keep the crop at the pipeline sample size
+        final int maxWidth;
+        final int maxHeight;
+        final Bitmap.CompressFormat format;
+        final int quality;
+
+        Output(Uri uri, int maxWidth, int maxHeight, Bitmap.CompressFormat format, int quality) {
+            this.uri = uri;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.format = format;
+            this.quality = quality;
+        }
+    }
+
+    // Bitmap.compress writes 4:2:0 JPEGs, made of 16x16 pixel MCUs
+    private static final int COMPRESS_MCU_SIZE = 16;
+    private static final boolean REGION_DECODE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+    // Share of the heap the pixel copies for the Lanczos scaler may take
+    private static final int RESAMPLE_MEMORY_FRACTION = 8;
+    // Share of the heap the whole sampled image may take in full color when there is no region decoder
+    private static final int IN_MEMORY_DECODE_FRACTION = 4;
+    private static final int ARGB_BYTES = 4;
+    private static final int SCALE_THREADS = Runtime.getRuntime().availableProcessors();
+    // Passed as the decode target when the decoded bitmap is scaled before saving, so it must not be padded
+    private static final Point NO_PADDING = new Point();
+
+    private static final ExecutorService sScalePool = Executors.newFixedThreadPool(SCALE_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "crop-scaler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final CropSource mSource;
+    private final Rect mRegion;
+    private final int mSampleSize;
+    private final int mExifOrientation;
+
+    private final ArrayList<Output> mOutputs = new ArrayList<Output>();
+    private boolean mLosslessJpeg;
+    private boolean mKeepExif;
+    private ProgressListener mListener;
+    // Metadata copied into JPEG outputs, null if the source is not a JPEG
+    private JpegMetadata mMetadata;
+
+    private int mDecodeSampleSize;
+    // Bitmap pixels decoded in front of the crop so that the lossless rotation can start on a block edge
+    private int mPadLeft;
+    private int mPadTop;
+
+    /**
+     * @param region Crop rectangle in unrotated source image coordinates
+     * @param sampleSize Sample size for outputs without a max size, independent of the preview
+     */
+    CropPipeline(CropSource source, Rect region, int sampleSize, int exifOrientation) {
+        mSource = source;
+        mRegion = new Rect(region);
+        mSampleSize = sampleSize;
+        mExifOrientation = exifOrientation;
+    }
+
+    CropPipeline addOutput(Output output) {
+        mOutputs.add(output);
+        return this;
+    }
+
+    CropPipeline setLosslessJpeg(boolean losslessJpeg) {
+        mLosslessJpeg = losslessJpeg;
+        return this;
+    }
+
+    CropPipeline setKeepExif(boolean keepExif) {
+        mKeepExif = keepExif;
+        return this;
+    }
+
+    CropPipeline setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Writes all outputs, using the resolver to open them
+     */
+    void run(ContentResolver resolver) throws IOException {
+        final JpegTransform transform = JpegTransform.fromExifOrientation(mExifOrientation);
+        for (Output output : mOutputs) {
+            if (output.format == Bitmap.CompressFormat.JPEG) {
+                mMetadata = CropUtil.readJpegMetadata(mSource, true);
+                break;
+            }
+        }
+        // Outputs that need pixels, mapped to their size in source orientation (null for preview sample size)
+        final ArrayList<Output> scaled = new ArrayList<Output>();
+        final HashMap<Output, Point> targets = new HashMap<Output, Point>();
+        for (Output output : mOutputs) {
+            final Point target = getTargetSize(mRegion, output, transform.transposes());
+            if (mLosslessJpeg && output.format == Bitmap.CompressFormat.JPEG
+                && (target == null || (target.x == mRegion.width() && target.y == mRegion.height()))
+                && cropLossless(resolver, output, transform)) {
+                continue;
+            }
+            scaled.add(output);
+            targets.put(output, target);
+        }
+        if (scaled.isEmpty()) {
+            return;
+        }
+
+        // Largest first, so every size can be scaled from the previous one
+        Collections.sort(scaled, new Comparator<Output>() {
+            @Override
+            public int compare(Output lhs, Output rhs) {
+                return area(targets.get(rhs)) - area(targets.get(lhs));
+            }
+        });
+        final Point largest = targets.get(scaled.get(0));
+        mDecodeSampleSize = largest != null ? getTargetSampleSize(mRegion, largest) : mSampleSize;
+
+        onStage(STAGE_DECODE);
+        // Only pad when the decoded bitmap is saved as it is, and as a JPEG that can be rotated losslessly
+        final boolean pad = scaled.size() == 1 && scaled.get(0).format == Bitmap.CompressFormat.JPEG;
+        final Bitmap decoded = decode(transform, pad ? largest : NO_PADDING);
+        if (decoded == null) {
+            throw new IOException("Cannot decode region " + mRegion);
+        }
+        final ArrayList<Bitmap> levels = new ArrayList<Bitmap>();
+        final ArrayList<Future<?>> encodes = new ArrayList<Future<?>>();
+        levels.add(decoded);
+        try {
+            Bitmap current = decoded;
+            int padLeft = mPadLeft;
+            int padTop = mPadTop;
+            for (final Output output : scaled) {
+                final Point target = targets.get(output);
+                if (target != null && (current.getWidth() - padLeft != target.x
+                                       || current.getHeight() - padTop != target.y)) {
+                    onStage(STAGE_SCALE);
+                    current = resample(current, target.x, target.y);
+                    levels.add(current);
+                    padLeft = 0;
+                    padTop = 0;
+                }
+                if (encodes.isEmpty()) {
+                    onStage(STAGE_ENCODE);
+                }
+                encodes.add(sScalePool.submit(new Encoder(resolver, output, current, padLeft, padTop, transform)));
+            }
+            waitFor(encodes);
+        } finally {
+            // Encoders still reading a bitmap have to finish before it goes back to the pool
+            for (Future<?> encode : encodes) {
+                encode.cancel(false);
+            }
+            awaitQuietly(encodes);
+            for (Bitmap level : levels) {
+                BitmapPool.get().put(level);
+            }
+        }
+    }
+
+    /**
+     * Rough upper bound of the bitmap and pixel buffer bytes a crop holds at
+     * once: the decoded region, the Lanczos scaler copies of it and every
+     * scaled level, in whichever orientation needs more.
+     *
+     * @param region Crop rectangle in unrotated source image coordinates
+     * @param sampleSize Sample size used for outputs without a max size
+     */
+    long estimatePeakBytes() {
+        return estimatePeakBytes(mRegion, mOutputs, mSampleSize);
+    }
+
+    static long estimatePeakBytes(Rect region, List<Output> outputs, int sampleSize) {
+        long peak = 0;
+        for (boolean transposed : new boolean[] { false, true }) {
+            Point largest = null;
+            boolean unscaled = false;
+            long levels = 0;
+            for (Output output : outputs) {
+                Point target = getTargetSize(region, output, transposed);
+                if (target == null) {
+                    unscaled = true;
+                    continue;
+                }
+                if (largest == null || area(target) > area(largest)) {
+                    largest = target;
+                }
+                levels += (long) area(target) * ARGB_BYTES;
+            }
+            final int sample = unscaled || largest == null ? sampleSize : getTargetSampleSize(region, largest);
+            final long decoded = (long) ((region.width() + sample - 1) / sample)
+                                 * ((region.height() + sample - 1) / sample) * ARGB_BYTES;
+            // A pixel copy of the decoded region for the scaler or a rotated copy for the encoder,
+            // and each scaled level both as int[] and as bitmap
+            peak = Math.max(peak, decoded * 2 + levels * 2);
+        }
+        return peak;
+    }
+
+    private static int area(Point size) {
+        return size != null ? size.x * size.y : Integer.MAX_VALUE;
+    }
+
+    private static void waitFor(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitQuietly(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    // Already reported, or the crop failed anyway
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Crops and rotates JPEG sources in the DCT domain, for outputs that need no scaling
+    private boolean cropLossless(ContentResolver resolver, Output output, JpegTransform transform)
+            throws IOException {
+        InputStream in = mSource.openStream();
+        OutputStream out = null;
+        try {
+            LosslessJpegCropper cropper;
+            try {
+                cropper = new LosslessJpegCropper(in);
+            } catch (IOException e) {
+                // Progressive, arithmetic coded etc., decode and re-encode instead
+                Log.e("Cannot crop losslessly: " + e.getMessage(), e);
+                return false;
+            }
+            onStage(STAGE_ENCODE);
+            out = openOutput(resolver, output);
+            cropper.crop(mRegion.left, mRegion.top, mRegion.right, mRegion.bottom, transform, out);
+            return true;
+        } finally {
+            CropUtil.closeSilently(in);
+            CropUtil.closeSilently(out);
+        }
+    }
+
+    // JPEG outputs get the source metadata spliced in as they are written
+    private OutputStream openOutput(ContentResolver resolver, Output output) throws IOException {
+        OutputStream out = resolver.openOutputStream(output.uri);
+        if (out == null) {
+            throw new IOException("Cannot open " + output.uri);
+        }
+        if (mMetadata != null && output.format == Bitmap.CompressFormat.JPEG) {
+            out = new JpegMetadataOutputStream(out, mMetadata, mKeepExif);
+        }
+        return out;
+    }
+
+    /*
+     * The largest size that fits the max size without changing the aspect
+     * ratio, never larger than the region itself. Swapped into source
+     * orientation, since the max size applies to the rotated output.
+     */
+    private static Point getTargetSize(Rect region, Output output, boolean transposed) {
+        if (output.maxWidth <= 0 || output.maxHeight <= 0) {
+            return null;
+        }
+        final int maxWidth = transposed ? output.maxHeight : output.maxWidth;
+        final int maxHeight = transposed ? output.maxWidth : output.maxHeight;
+        final int width = region.width();
+        final int height = region.height();
+        if (width <= maxWidth && height <= maxHeight) {
+            return new Point(width, height);
+        }
+        if ((long) width * maxHeight > (long) height * maxWidth) {
+            return new Point(maxWidth, Math.max(1, (int) ((long) height * maxWidth / width)));
+        }
+        return new Point(Math.max(1, (int) ((long) width * maxHeight / height)), maxHeight);
+    }
+
+    // Largest power of two sample size that still decodes at least the target size
+    private static int getTargetSampleSize(Rect region, Point target) {
+        int sample = 1;
+        while (region.width() / (sample * 2) >= target.x && region.height() / (sample * 2) >= target.y) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * @param target Size the decoded bitmap is saved at, to tell whether it can be padded for lossless rotation
+     */
+    private Bitmap decode(JpegTransform transform, Point target) throws IOException {
+        mPadLeft = 0;
+        mPadTop = 0;
+        if (REGION_DECODE) {
+            return decodeRegion(transform, target);
+        }
+        // No region decoder at this API level, decode the sampled image and cut the crop out of it.
+        // The whole image has to fit in memory, so never go below the output sample size.
+        final int sample = Math.max(mDecodeSampleSize, mSampleSize);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = getInMemoryDecodeConfig(sample);
+        options.inDither = true;
+        InputStream in = mSource.openStream();
+        Bitmap full;
+        try {
+            full = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            CropUtil.closeSilently(in);
+        }
+        if (full == null) {
+            return null;
+        }
+        try {
+            final Rect src = new Rect(mRegion.left / sample, mRegion.top / sample,
+                                      mRegion.right / sample, mRegion.bottom / sample);
+            Bitmap cropped = BitmapPool.get().getOrCreate(src.width(), src.height(), full.getConfig());
+            new Canvas(cropped).drawBitmap(full, src, new Rect(0, 0, src.width(), src.height()), null);
+            return cropped;
+        } finally {
+            BitmapPool.get().put(full);
+        }
+    }
+
+    /*
+     * ARGB_8888 unless the sampled image would take too much of the heap, the
+     * output would show banding otherwise. RGB_565 is decoded dithered.
+     */
+    private Bitmap.Config getInMemoryDecodeConfig(int sample) throws IOException {
+        InputStream in = mSource.openStream();
+        BitmapFactory.Options bounds;
+        try {
+            bounds = DecodePlanner.decodeBounds(in);
+        } finally {
+            CropUtil.closeSilently(in);
+        }
+        final long bytes = (long) DecodePlanner.sampledSize(bounds.outWidth, sample)
+                           * DecodePlanner.sampledSize(bounds.outHeight, sample) * ARGB_BYTES;
+        return bytes <= Runtime.getRuntime().maxMemory() / IN_MEMORY_DECODE_FRACTION
+               ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+    }
+
+    @TargetApi(10)
+    private Bitmap decodeRegion(JpegTransform transform, Point target) throws IOException {
+        BitmapRegionDecoder decoder = mSource.newRegionDecoder();
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+        final Rect rect = target != NO_PADDING ? padForLosslessRotation(mRegion, transform, target) : mRegion;
+
+        final BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inSampleSize = mDecodeSampleSize;
+        Rect decoded = new Rect(rect);
+        if (mDecodeSampleSize == 1 && decoded.intersect(0, 0, width, height)) {
+            // Sampled region sizes depend on the codec, only reuse memory for full size decodes
+            BitmapPool.get().prepareRegionDecode(o, decoded.width(), decoded.height());
+        }
+        try {
+            return decoder.decodeRegion(rect, o);
+        } catch (IllegalArgumentException e) {
+            BitmapPool.get().put(o.inBitmap);
+            // Rethrow with some extra information
+            throw new IllegalArgumentException("Rectangle " + rect + " is outside of the image ("
+                                               + width + "," + height + "," + mExifOrientation + ")", e);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /*
+     * The DCT domain rotation needs the mirrored edges of the cropped bitmap on
+     * the JPEG block grid. Decode a few extra pixels in front of the crop to get
+     * there; they end up in the last, partial block and are cut off on save.
+     */
+    private Rect padForLosslessRotation(Rect rect, JpegTransform transform, Point target) {
+        final int sample = mDecodeSampleSize;
+        final int width = (rect.width() + sample - 1) / sample;
+        final int height = (rect.height() + sample - 1) / sample;
+        if (transform == JpegTransform.NONE || (target != null && (width != target.x || height != target.y))) {
+            // Nothing to rotate, or the bitmap is scaled before saving
+            return rect;
+        }
+        if (transform.mirrorsX()) {
+            final int pad = (COMPRESS_MCU_SIZE - width % COMPRESS_MCU_SIZE) % COMPRESS_MCU_SIZE;
+            if (rect.left >= pad * sample) {
+                mPadLeft = pad;
+            }
+        }
+        if (transform.mirrorsY()) {
+            final int pad = (COMPRESS_MCU_SIZE - height % COMPRESS_MCU_SIZE) % COMPRESS_MCU_SIZE;
+            if (rect.top >= pad * sample) {
+                mPadTop = pad;
+            }
+        }
+        return new Rect(rect.left - mPadLeft * sample, rect.top - mPadTop * sample, rect.right, rect.bottom);
+    }
+
+    /*
+     * The single scaling step, Lanczos filtered when the pixel copies it needs
+     * fit in memory. Otherwise bilinear filtering, which is still fine since
+     * the region was decoded at less than twice the target size.
+     */
+    private Bitmap resample(Bitmap bm, int newWidth, int newHeight) throws InterruptedIOException {
+        final int width = bm.getWidth();
+        final int height = bm.getHeight();
+        Bitmap.Config config = bm.getConfig() != null ? bm.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap resized = BitmapPool.get().getOrCreate(newWidth, newHeight, config);
+
+        final long rasterBytes = ((long) width * height + (long) newWidth * newHeight) * 4;
+        if (rasterBytes <= Runtime.getRuntime().maxMemory() / RESAMPLE_MEMORY_FRACTION) {
+            int[] src = new int[width * height];
+            int[] dst = new int[newWidth * newHeight];
+            bm.getPixels(src, 0, width, 0, 0, width, height);
+            try {
+                new Resampler(Resampler.Filter.LANCZOS3, sScalePool, SCALE_THREADS)
+                        .resample(src, width, height, dst, newWidth, newHeight);
+            } catch (CancellationException e) {
+                // Whether a single band ran on this thread or several on the pool, dst is incomplete
+                BitmapPool.get().put(resized);
+                throw new InterruptedIOException("Crop cancelled");
+            } catch (IllegalStateException e) {
+                BitmapPool.get().put(resized);
+                throw e;
+            }
+            resized.setPixels(dst, 0, newWidth, 0, 0, newWidth, newHeight);
+        } else {
+            Matrix matrix = new Matrix();
+            matrix.setScale((float) newWidth / width, (float) newHeight / height);
+            new Canvas(resized).drawBitmap(bm, matrix, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        }
+        return resized;
+    }
+
+    private class Encoder implements Callable<Void> {
+
+        private final ContentResolver mResolver;
+        private final Output mOutput;
+        private final Bitmap mBitmap;
+        private final int mPadLeft;
+        private final int mPadTop;
+        private final JpegTransform mTransform;
+
+        Encoder(ContentResolver resolver, Output output, Bitmap bitmap, int padLeft, int padTop,
+                JpegTransform transform) {
+            mResolver = resolver;
+            mOutput = output;
+            mBitmap = bitmap;
+            mPadLeft = padLeft;
+            mPadTop = padTop;
+            mTransform = transform;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            OutputStream out = openOutput(mResolver, mOutput);
+            try {
+                if (mTransform == JpegTransform.NONE) {
+                    mBitmap.compress(mOutput.format, mOutput.quality, out);
+                } else if (mOutput.format != Bitmap.CompressFormat.JPEG || !compressTransformed(out)) {
+                    // Without the padding, which only helps the lossless rotation
+                    Bitmap rotated = Bitmap.createBitmap(mBitmap, mPadLeft, mPadTop,
+                                                         mBitmap.getWidth() - mPadLeft, mBitmap.getHeight() - mPadTop,
+                                                         CropUtil.getExifMatrix(mExifOrientation), true);
+                    rotated.compress(mOutput.format, mOutput.quality, out);
+                    BitmapPool.get().put(rotated);
+                }
+            } finally {
+                CropUtil.closeSilently(out);
+            }
+            return null;
+        }
+
+        // Rotates in the DCT domain, so no second full size bitmap is needed
+        private boolean compressTransformed(OutputStream out) throws IOException {
+            final int width = mBitmap.getWidth();
+            final int height = mBitmap.getHeight();
+            if ((mTransform.mirrorsX() && width % COMPRESS_MCU_SIZE != 0)
+                || (mTransform.mirrorsY() && height % COMPRESS_MCU_SIZE != 0)) {
+                return false;
+            }
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            mBitmap.compress(Bitmap.CompressFormat.JPEG, mOutput.quality, jpeg);
+            LosslessJpegCropper cropper = new LosslessJpegCropper(new ByteArrayInputStream(jpeg.toByteArray()));
+            if ((mTransform.mirrorsX() && width % cropper.getMcuWidth() != 0)
+                || (mTransform.mirrorsY() && height % cropper.getMcuHeight() != 0)) {
+                return false;
+            }
+            cropper.crop(mPadLeft, mPadTop, width, height, mTransform, out);
+            return true;
+        }
+    }
+
+    // Stage boundaries are where a cancelled crop stops
+    private void onStage(int stage) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Crop cancelled");
+        }
+        if (mListener != null) {
+            mListener.onStage(stage);
+        }
+    }
+}
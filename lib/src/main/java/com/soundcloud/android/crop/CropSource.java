@@ -0,0 +1,245 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The image being cropped, opened through the content resolver exactly once.
+ *
+ * Sources backed by a plain file are memory mapped. Anything else (pipes,
+ * assets inside an APK, network backed providers) is spooled to the cache
+ * directory a single time and mapped from there. EXIF, bounds, preview,
+ * region and lossless decodes all read from the same mapping or descriptor.
+ */
+class CropSource implements Closeable {
+
+    private static final String SCHEME_FILE = "file";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Closeable mHandle;
+    private final MappedByteBuffer mBuffer;
+    // Stays valid until close(), the region decoders read from it
+    private final FileDescriptor mDescriptor;
+    // Null for content provider sources, which can only be read through the descriptor
+    private final File mFile;
+    private final File mSpoolFile;
+    private final long mLastModified;
+    private final AtomicLong mBytesRead = new AtomicLong();
+
+    private CropSource(Closeable handle, MappedByteBuffer buffer, FileDescriptor descriptor, File file,
+                       File spoolFile, long lastModified) {
+        mHandle = handle;
+        mBuffer = buffer;
+        mDescriptor = descriptor;
+        mFile = file;
+        mSpoolFile = spoolFile;
+        mLastModified = lastModified;
+    }
+
+    static CropSource open(Context context, Uri uri) throws IOException {
+        if (SCHEME_FILE.equals(uri.getScheme())) {
+            File file = new File(uri.getPath());
+            FileInputStream in = new FileInputStream(file);
+            return map(in, in, file, null, file.lastModified(), AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        ContentResolver resolver = context.getContentResolver();
+        AssetFileDescriptor afd = resolver.openAssetFileDescriptor(uri, "r");
+        if (afd == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        if (afd.getStartOffset() == 0 && afd.getParcelFileDescriptor().getStatSize() >= 0) {
+            // A regular file, read through the descriptor the provider handed out. Reopening it by path
+            // would check permissions again, which fails for files private to the providing app.
+            // Only stat goes through procfs, while the descriptor is certainly still ours.
+            final long lastModified = new File("/proc/self/fd/" + afd.getParcelFileDescriptor().getFd()).lastModified();
+            FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+            return map(afd, in, null, null, lastModified, afd.getDeclaredLength());
+        }
+
+        File spoolFile = File.createTempFile("crop", null, context.getCacheDir());
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = afd.createInputStream();
+            out = new FileOutputStream(spoolFile);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            spoolFile.delete();
+            throw e;
+        } finally {
+            CropUtil.closeSilently(in);
+            CropUtil.closeSilently(out);
+            CropUtil.closeSilently(afd);
+        }
+        FileInputStream spooled = new FileInputStream(spoolFile);
+        // Spooled sources have no stable modification time to cache previews by
+        return map(spooled, spooled, spoolFile, spoolFile, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * @param declaredLength Length the provider declared, or UNKNOWN_LENGTH to map the whole file
+     */
+    private static CropSource map(Closeable handle, FileInputStream in, File file, File spoolFile,
+                                  long lastModified, long declaredLength) throws IOException {
+        try {
+            FileChannel channel = in.getChannel();
+            final long length = declaredLength >= 0 ? Math.min(declaredLength, channel.size()) : channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new CropSource(handle, buffer, in.getFD(), file, spoolFile, lastModified);
+        } catch (IOException e) {
+            CropUtil.closeSilently(handle);
+            if (spoolFile != null) {
+                spoolFile.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return A new stream over the mapped source, starting at its first byte
+     */
+    InputStream openStream() {
+        return new MappedInputStream(mBuffer.duplicate(), mBytesRead);
+    }
+
+    /**
+     * @return A new stream over part of the mapped source, such as an embedded thumbnail
+     */
+    InputStream openStream(long offset, int length) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        final int start = (int) Math.min(offset, buffer.capacity());
+        buffer.position(start);
+        buffer.limit((int) Math.min(buffer.capacity(), (long) start + length));
+        return new MappedInputStream(buffer, mBytesRead);
+    }
+
+    @TargetApi(10)
+    BitmapRegionDecoder newRegionDecoder() throws IOException {
+        // Reads the file itself instead of copying a stream into memory first
+        return BitmapRegionDecoder.newInstance(mDescriptor, false);
+    }
+
+    /**
+     * @return Path of a file or spooled source, null for content provider sources
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    long getLength() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * @return Last modified time of the source, 0 if unknown because it had to be spooled
+     */
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return Bytes copied to the cache directory, 0 unless the source had to be spooled
+     */
+    long getSpooledBytes() {
+        return mSpoolFile != null ? mBuffer.capacity() : 0;
+    }
+
+    /**
+     * @return Bytes read through {@link #openStream()} streams so far. Native
+     *         decoders reading the file directly are not included.
+     */
+    long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    @Override
+    public void close() {
+        CropUtil.closeSilently(mHandle);
+        if (mSpoolFile != null) {
+            mSpoolFile.delete();
+        }
+    }
+
+    private static class MappedInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+        private final AtomicLong mBytesRead;
+
+        MappedInputStream(ByteBuffer buffer, AtomicLong bytesRead) {
+            mBuffer = buffer;
+            mBytesRead = bytesRead;
+        }
+
+        @Override
+        public int read() {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            mBytesRead.incrementAndGet();
+            return mBuffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            mBytesRead.addAndGet(count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            final int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.reset();
+        }
+    }
+}
@@ -17,27 +17,38 @@
 package com.soundcloud.android.crop;
 
 import android.app.ProgressDialog;
-import android.content.ContentResolver;
-import android.database.Cursor;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.media.ExifInterface;
-import android.net.Uri;
 import android.os.Handler;
-import android.provider.MediaStore;
-import android.text.TextUtils;
 
-import com.soundcloud.android.crop.util.Log;
+import com.soundcloud.android.crop.jpeg.JpegMetadata;
 
 import java.io.Closeable;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /*
  * Modified from original in AOSP.
  */
 class CropUtil {
 
-    private static final String SCHEME_FILE = "file";
-    private static final String SCHEME_CONTENT = "content";
+    private static final int JOB_THREADS = 2;
+
+    private static final ExecutorService sJobExecutor = Executors.newFixedThreadPool(JOB_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "crop-job");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     public static void closeSilently(Closeable c) {
         if (c == null) return;
@@ -48,91 +59,145 @@ class CropUtil {
         }
     }
 
-    public static int getExifRotation(File imageFile) {
-        if (imageFile == null) return 0;
+    public static JpegMetadata readJpegMetadata(CropSource source) {
+        return readJpegMetadata(source, false);
+    }
+
+    /**
+     * @param keepSegments Keep EXIF, ICC and XMP segments to copy them to the output
+     * @return Header of the source, or null if it is not a readable JPEG
+     */
+    public static JpegMetadata readJpegMetadata(CropSource source, boolean keepSegments) {
+        InputStream in = source.openStream();
         try {
-            ExifInterface exif = new ExifInterface(imageFile.getAbsolutePath());
-            // We only recognize a subset of orientation tag values
-            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED)) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    return 90;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    return 180;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    return 270;
-                default:
-                    return ExifInterface.ORIENTATION_UNDEFINED;
-            }
+            return JpegMetadata.read(in, keepSegments);
         } catch (IOException e) {
-            Log.e("Error getting Exif data", e);
-            return 0;
+            // PNG, WebP, ... have no EXIF orientation
+            return null;
+        } finally {
+            closeSilently(in);
         }
     }
 
-    public static boolean copyExifRotation(File sourceFile, File destFile) {
-        if (sourceFile == null || destFile == null) return false;
-        try {
-            ExifInterface exifSource = new ExifInterface(sourceFile.getAbsolutePath());
-            ExifInterface exifDest = new ExifInterface(destFile.getAbsolutePath());
-            exifDest.setAttribute(ExifInterface.TAG_ORIENTATION, exifSource.getAttribute(ExifInterface.TAG_ORIENTATION));
-            exifDest.saveAttributes();
-            return true;
-        } catch (IOException e) {
-            Log.e("Error copying Exif data", e);
-            return false;
+    public static int getExifOrientation(JpegMetadata metadata) {
+        return metadata != null ? metadata.getOrientation() : ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    // Rotation that turns the image upright, after mirroring it if isExifFlipped()
+    public static int getExifRotation(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return 270;
+            default:
+                return ExifInterface.ORIENTATION_UNDEFINED;
         }
     }
 
-    public static File getFromMediaUri(ContentResolver resolver, Uri uri) {
-        if (uri == null) return null;
+    // Whether the image is mirrored left to right before getExifRotation() is applied
+    public static boolean isExifFlipped(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        if (SCHEME_FILE.equals(uri.getScheme())) {
-            return new File(uri.getPath());
-        } else if (SCHEME_CONTENT.equals(uri.getScheme())) {
-            final String[] filePathColumn = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DISPLAY_NAME };
-            Cursor cursor = null;
-            try {
-                cursor = resolver.query(uri, filePathColumn, null, null, null);
-                if (cursor != null && cursor.moveToFirst()) {
-                    final int columnIndex = (uri.toString().startsWith("content://com.google.android.gallery3d")) ?
-                            cursor.getColumnIndex(MediaStore.MediaColumns.DISPLAY_NAME) :
-                            cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
-                    // Picasa image on newer devices with Honeycomb and up
-                    if (columnIndex != -1) {
-                        String filePath = cursor.getString(columnIndex);
-                        if (!TextUtils.isEmpty(filePath)) {
-                            return new File(filePath);
-                        }
-                    }
-                }
-            } catch (SecurityException ignored) {
-                // Nothing we can do
-            } finally {
-                if (cursor != null) cursor.close();
-            }
+    // Matrix that turns an image with the given EXIF orientation upright, mirrors included
+    public static Matrix getExifMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postScale(-1, 1);
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postScale(-1, 1);
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
         }
-        return null;
+        return matrix;
+    }
+
+    /*
+     * Maps a rectangle on the upright image back onto the stored image of the
+     * given size, undoing exactly what getExifMatrix() does to the pixels.
+     */
+    public static Rect toStoredRect(Rect rect, int orientation, int width, int height) {
+        Matrix matrix = getExifMatrix(orientation);
+        RectF bounds = new RectF(0, 0, width, height);
+        matrix.mapRect(bounds);
+        // Move the upright image back to the origin
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        Matrix inverse = new Matrix();
+        matrix.invert(inverse);
+        RectF stored = new RectF(rect);
+        inverse.mapRect(stored);
+        return new Rect(Math.round(stored.left), Math.round(stored.top),
+                        Math.round(stored.right), Math.round(stored.bottom));
     }
 
-    public static void startBackgroundJob(MonitoredActivity activity,
+    /*
+     * Runs the job on a shared pool. The job is interrupted when the activity
+     * is destroyed; it should check Thread.interrupted() between steps, give
+     * up and not touch the activity any more.
+     */
+    public static ProgressDialog startBackgroundJob(MonitoredActivity activity,
             String title, String message, Runnable job, Handler handler) {
         // Make the progress dialog uncancelable, so that we can gurantee
         // the thread will be done before the activity getting destroyed
         ProgressDialog dialog = ProgressDialog.show(
                 activity, title, message, true, false);
-        new Thread(new BackgroundJob(activity, job, dialog, handler)).start();
+        BackgroundJob backgroundJob = new BackgroundJob(activity, job, dialog, handler);
+        backgroundJob.mFuture = sJobExecutor.submit(backgroundJob);
+        return dialog;
+    }
+
+    /*
+     * Same as startBackgroundJob, for jobs that should not block the UI with a
+     * progress dialog.
+     */
+    public static void startBackgroundJob(MonitoredActivity activity, Runnable job, Handler handler) {
+        BackgroundJob backgroundJob = new BackgroundJob(activity, job, null, handler);
+        backgroundJob.mFuture = sJobExecutor.submit(backgroundJob);
     }
 
     private static class BackgroundJob extends MonitoredActivity.LifeCycleAdapter implements Runnable {
 
         private final MonitoredActivity mActivity;
-        private final ProgressDialog mDialog;
+        private final ProgressDialog mDialog; // Null when the job runs without one
         private final Runnable mJob;
         private final Handler mHandler;
+        private Future<?> mFuture;
         private final Runnable mCleanupRunner = new Runnable() {
             public void run() {
                 mActivity.removeLifeCycleListener(BackgroundJob.this);
-                if (mDialog.getWindow() != null) mDialog.dismiss();
+                if (mDialog != null && mDialog.getWindow() != null) mDialog.dismiss();
             }
         };
 
@@ -147,7 +212,9 @@ class CropUtil {
 
         public void run() {
             try {
-                mJob.run();
+                if (!Thread.currentThread().isInterrupted()) {
+                    mJob.run();
+                }
             } finally {
                 mHandler.post(mCleanupRunner);
             }
@@ -155,6 +222,11 @@ class CropUtil {
 
         @Override
         public void onActivityDestroyed(MonitoredActivity activity) {
+            // Nobody is waiting for the result any more
+            Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(true);
+            }
             // We get here only when the onDestroyed being called before
             // the mCleanupRunner. So, run it now and remove it from the queue
             mCleanupRunner.run();
@@ -163,12 +235,12 @@ class CropUtil {
 
         @Override
         public void onActivityStopped(MonitoredActivity activity) {
-            mDialog.hide();
+            if (mDialog != null) mDialog.hide();
         }
 
         @Override
         public void onActivityStarted(MonitoredActivity activity) {
-            mDialog.show();
+            if (mDialog != null) mDialog.show();
         }
     }
 
@@ -0,0 +1,184 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.InputStream;
+
+/*
+ * Works out how to decode the preview from the source bounds alone, so that
+ * the preview needs exactly one full decode.
+ *
+ * The preview is sampled down as far as it can go while still filling the
+ * target size, which is the view scaled by the zoom the preview has to stay
+ * sharp for. It is then kept within the texture size and memory budget.
+ */
+class DecodePlanner {
+
+    // The maximum sample size the old retry loop would try before giving up
+    private static final int LEGACY_MAX_SAMPLE_SIZE = 16;
+
+    private final int mMaxTextureSize;
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private final long mMemoryBudget;
+
+    static class Plan {
+
+        // Why the config was picked
+        static final String CONFIG_ALPHA = "alpha";
+        static final String CONFIG_OPAQUE = "opaque";
+        static final String CONFIG_MEMORY = "memory";
+
+        final int sourceWidth;
+        final int sourceHeight;
+        final int targetWidth;
+        final int targetHeight;
+        final long memoryBudget;
+        final int sampleSize;
+        final Bitmap.Config config;
+        final String configReason;
+        final int decodesSaved;
+
+        Plan(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, long memoryBudget,
+             int sampleSize, Bitmap.Config config, String configReason, int decodesSaved) {
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.memoryBudget = memoryBudget;
+            this.sampleSize = sampleSize;
+            this.config = config;
+            this.configReason = configReason;
+            this.decodesSaved = decodesSaved;
+        }
+
+        int getWidth() {
+            return sampledSize(sourceWidth, sampleSize);
+        }
+
+        int getHeight() {
+            return sampledSize(sourceHeight, sampleSize);
+        }
+
+        long getByteCount() {
+            return (long) getWidth() * getHeight() * bytesPerPixel(config);
+        }
+
+        BitmapFactory.Options toOptions() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            // Smooth gradients would band in 16 bits
+            options.inDither = config == Bitmap.Config.RGB_565;
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan[" + sourceWidth + "x" + sourceHeight + " / " + sampleSize
+                    + " for " + targetWidth + "x" + targetHeight + " -> "
+                    + getWidth() + "x" + getHeight() + " " + config + " (" + configReason + "), saved " + decodesSaved + " decodes]";
+        }
+    }
+
+    /**
+     * @param maxTextureSize Largest preview edge the view can draw
+     * @param targetWidth Width the preview is shown at, including zoom. The preview is
+     *                    not sampled further than filling the target at either edge.
+     * @param targetHeight Height the preview is shown at, including zoom
+     * @param memoryBudget Maximum number of bytes the preview bitmap may use
+     */
+    DecodePlanner(int maxTextureSize, int targetWidth, int targetHeight, long memoryBudget) {
+        mMaxTextureSize = maxTextureSize;
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mMemoryBudget = memoryBudget;
+    }
+
+    // Reads only the image header, the returned options hold the source bounds
+    static BitmapFactory.Options decodeBounds(InputStream is) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(is, null, options);
+        return options;
+    }
+
+    Plan plan(int sourceWidth, int sourceHeight) {
+        return plan(sourceWidth, sourceHeight, false);
+    }
+
+    /**
+     * @param opaque Whether the source has no alpha channel, such as a JPEG. Its preview is decoded
+     *               as RGB_565 straight away, it is dimmed under the crop overlay and the saved crop
+     *               is decoded again from the source, so the lost precision does not show.
+     */
+    Plan plan(int sourceWidth, int sourceHeight, boolean opaque) {
+        int sampleSize = 1;
+        while (coversTarget(sourceWidth, sourceHeight, sampleSize * 2)) {
+            sampleSize *= 2;
+        }
+        sampleSize = fitTextureSize(sourceWidth, sourceHeight, sampleSize, mMaxTextureSize);
+
+        // Prefer halving the bytes per pixel over dropping below the displayed resolution
+        Bitmap.Config config = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        String configReason = opaque ? Plan.CONFIG_OPAQUE : Plan.CONFIG_ALPHA;
+        while (byteCount(sourceWidth, sourceHeight, sampleSize, config) > mMemoryBudget) {
+            if (config == Bitmap.Config.ARGB_8888 && !coversTarget(sourceWidth, sourceHeight, sampleSize * 2)) {
+                config = Bitmap.Config.RGB_565;
+                configReason = Plan.CONFIG_MEMORY;
+            } else {
+                sampleSize *= 2;
+            }
+        }
+
+        int decodesSaved = legacyDecodeCount(sourceWidth, sourceHeight) - 1;
+        return new Plan(sourceWidth, sourceHeight, mTargetWidth, mTargetHeight, mMemoryBudget,
+                        sampleSize, config, configReason, decodesSaved);
+    }
+
+    // Smallest power of two multiple of the sample size that keeps both edges within the texture size
+    static int fitTextureSize(int sourceWidth, int sourceHeight, int sampleSize, int maxTextureSize) {
+        while (sampledSize(sourceWidth, sampleSize) > maxTextureSize
+                || sampledSize(sourceHeight, sampleSize) > maxTextureSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // Whether the sampled image, fitted into the target, is not enlarged
+    private boolean coversTarget(int sourceWidth, int sourceHeight, int sampleSize) {
+        return sampledSize(sourceWidth, sampleSize) >= mTargetWidth
+                || sampledSize(sourceHeight, sampleSize) >= mTargetHeight;
+    }
+
+    // Number of full decodes the old decode-check-retry loop needed for these bounds
+    private int legacyDecodeCount(int sourceWidth, int sourceHeight) {
+        int sampleSize = 1;
+        int decodes = 1;
+        while ((sampledSize(sourceWidth, sampleSize) > mMaxTextureSize
+                || sampledSize(sourceHeight, sampleSize) > mMaxTextureSize)
+                && sampleSize < LEGACY_MAX_SAMPLE_SIZE) {
+            sampleSize *= 2;
+            decodes++;
+        }
+        return decodes;
+    }
+
+    private static long byteCount(int width, int height, int sampleSize, Bitmap.Config config) {
+        return (long) sampledSize(width, sampleSize) * sampledSize(height, sampleSize) * bytesPerPixel(config);
+    }
+
+    static int sampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
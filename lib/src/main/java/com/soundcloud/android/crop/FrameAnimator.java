@@ -0,0 +1,352 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+
+import com.soundcloud.android.crop.util.Log;
+
+/*
+ * Runs the zoom, pan and fling animations of the image view, one step per
+ * display frame. Frames come from Choreographer so that the steps line up
+ * with vsync, or from the Handler every 16ms before Jelly Bean.
+ *
+ * Starting an animation while another one runs merges them instead of
+ * running both: a new zoom continues from the current scale, a new pan adds
+ * the distance the previous one had left, and a fling changes the velocity.
+ * Zoom, pan and fling all run in the same frame callback and are handed to
+ * the view together, so each frame updates the image matrix once.
+ *
+ * Pinch and pan gestures go through here as well. Touch events can come
+ * faster than frames, so their zoom and pan is added up and applied with
+ * the next frame. Gestures take over from running animations and do not
+ * count towards the frame stats.
+ */
+class FrameAnimator {
+
+    private static final boolean VSYNC = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+    private static final long FRAME_NANOS = 16666667L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // Fling velocity decays by e^(-FLING_DECAY * seconds)
+    private static final float FLING_DECAY = 4F;
+    // Pixels per second below which a fling stops
+    private static final float MIN_FLING_VELOCITY = 20F;
+
+    /*
+     * Frame times of one animation, from the first step until it finished or
+     * was cancelled. A frame counts as dropped when it came more than one and
+     * a half frame intervals after the one before.
+     */
+    static class Stats {
+
+        int frames;
+        int droppedFrames;
+        long maxFrameNanos;
+        long durationNanos;
+
+        Stats copy() {
+            Stats copy = new Stats();
+            copy.frames = frames;
+            copy.droppedFrames = droppedFrames;
+            copy.maxFrameNanos = maxFrameNanos;
+            copy.durationNanos = durationNanos;
+            return copy;
+        }
+
+        long getAverageFrameNanos() {
+            return frames > 1 ? durationNanos / (frames - 1) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[frames=" + frames
+                    + ", droppedFrames=" + droppedFrames
+                    + ", maxFrameMillis=" + maxFrameNanos / NANOS_PER_MILLI
+                    + ", averageFrameMillis=" + getAverageFrameNanos() / NANOS_PER_MILLI
+                    + ", durationMillis=" + durationNanos / NANOS_PER_MILLI
+                    + "]";
+        }
+    }
+
+    private final ImageViewTouchBase mView;
+    private final Handler mHandler;
+    private final Interpolator mInterpolator = new DecelerateInterpolator();
+    private final Runnable mFallbackFrame = new Runnable() {
+        @Override
+        public void run() {
+            doFrame(System.nanoTime());
+        }
+    };
+    private VsyncTicker mVsyncTicker;
+    private boolean mScheduled;
+
+    private boolean mZooming;
+    private float mZoomFrom;
+    private float mZoomTo;
+    private float mZoomCenterX;
+    private float mZoomCenterY;
+    private long mZoomStart;
+    private long mZoomDuration;
+
+    private boolean mPanning;
+    private float mPanX;
+    private float mPanY;
+    // Part of the pan already applied
+    private float mPannedX;
+    private float mPannedY;
+    private long mPanStart;
+    private long mPanDuration;
+
+    private float mVelocityX;
+    private float mVelocityY;
+
+    private boolean mGesturePending;
+    private float mGestureScale = 1F;
+    private float mGestureFocusX;
+    private float mGestureFocusY;
+    private float mGestureX;
+    private float mGestureY;
+
+    private long mLastFrame;
+    private long mFirstFrame;
+    private final Stats mStats = new Stats();
+    private Stats mLastStats;
+
+    FrameAnimator(ImageViewTouchBase view, Handler handler) {
+        mView = view;
+        mHandler = handler;
+    }
+
+    void animateZoom(float scale, float centerX, float centerY, float durationMs) {
+        mZoomFrom = mView.getScale();
+        mZoomTo = scale;
+        mZoomCenterX = centerX;
+        mZoomCenterY = centerY;
+        mZoomStart = System.nanoTime();
+        mZoomDuration = (long) (durationMs * NANOS_PER_MILLI);
+        mZooming = true;
+        start();
+    }
+
+    void animatePan(float dx, float dy, float durationMs) {
+        if (mPanning) {
+            dx += mPanX - mPannedX;
+            dy += mPanY - mPannedY;
+        }
+        mPanX = dx;
+        mPanY = dy;
+        mPannedX = 0;
+        mPannedY = 0;
+        mPanStart = System.nanoTime();
+        mPanDuration = (long) (durationMs * NANOS_PER_MILLI);
+        mPanning = true;
+        start();
+    }
+
+    /**
+     * @param velocityX Pixels per second
+     * @param velocityY Pixels per second
+     */
+    void fling(float velocityX, float velocityY) {
+        mVelocityX = velocityX;
+        mVelocityY = velocityY;
+        start();
+    }
+
+    /**
+     * @param scaleFactor Zoom since the last call, around the focus point
+     */
+    void addGesture(float scaleFactor, float focusX, float focusY, float dx, float dy) {
+        cancel();
+        mGestureScale *= scaleFactor;
+        mGestureFocusX = focusX;
+        mGestureFocusY = focusY;
+        mGestureX += dx;
+        mGestureY += dy;
+        mGesturePending = true;
+        if (!mScheduled) {
+            schedule();
+        }
+    }
+
+    boolean isRunning() {
+        return mZooming || mPanning || isFlinging();
+    }
+
+    // Stops where it is, without calling back that the animation finished
+    void cancel() {
+        if (!isRunning()) {
+            return;
+        }
+        mZooming = false;
+        mPanning = false;
+        mVelocityX = 0;
+        mVelocityY = 0;
+        unschedule();
+        finishStats();
+    }
+
+    // Frame times of the last animation that finished or was cancelled, null before the first one
+    Stats getLastStats() {
+        return mLastStats;
+    }
+
+    private boolean isFlinging() {
+        return mVelocityX != 0 || mVelocityY != 0;
+    }
+
+    private void start() {
+        // Also when a gesture frame is already scheduled, the first fling step is timed from here
+        if (mLastFrame == 0) {
+            mFirstFrame = 0;
+            mLastFrame = System.nanoTime();
+        }
+        if (!mScheduled) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        mScheduled = true;
+        if (VSYNC) {
+            if (mVsyncTicker == null) {
+                mVsyncTicker = new VsyncTicker(this);
+            }
+            mVsyncTicker.post();
+        } else {
+            mHandler.postDelayed(mFallbackFrame, FALLBACK_FRAME_MILLIS);
+        }
+    }
+
+    private void unschedule() {
+        mScheduled = false;
+        if (VSYNC) {
+            if (mVsyncTicker != null) {
+                mVsyncTicker.remove();
+            }
+        } else {
+            mHandler.removeCallbacks(mFallbackFrame);
+        }
+    }
+
+    void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        if (mGesturePending) {
+            applyGesture();
+        }
+        if (!isRunning()) {
+            return;
+        }
+        recordFrame(frameTimeNanos);
+
+        float scale = Float.NaN;
+        if (mZooming) {
+            final float t = progress(frameTimeNanos, mZoomStart, mZoomDuration);
+            scale = mZoomFrom + (mZoomTo - mZoomFrom) * mInterpolator.getInterpolation(t);
+            mZooming = t < 1;
+        }
+
+        float dx = 0;
+        float dy = 0;
+        if (mPanning) {
+            final float t = progress(frameTimeNanos, mPanStart, mPanDuration);
+            final float fraction = mInterpolator.getInterpolation(t);
+            dx += mPanX * fraction - mPannedX;
+            dy += mPanY * fraction - mPannedY;
+            mPannedX = mPanX * fraction;
+            mPannedY = mPanY * fraction;
+            mPanning = t < 1;
+        }
+        if (isFlinging()) {
+            final float seconds = Math.max(frameTimeNanos - mLastFrame, 0) / 1e9F;
+            dx += mVelocityX * seconds;
+            dy += mVelocityY * seconds;
+            final float decay = (float) Math.exp(-FLING_DECAY * seconds);
+            mVelocityX *= decay;
+            mVelocityY *= decay;
+            if (Math.hypot(mVelocityX, mVelocityY) < MIN_FLING_VELOCITY) {
+                mVelocityX = 0;
+                mVelocityY = 0;
+            }
+        }
+        mLastFrame = frameTimeNanos;
+
+        mView.applyAnimationFrame(scale, mZoomCenterX, mZoomCenterY, dx, dy);
+
+        if (isRunning()) {
+            if (!mScheduled) {
+                schedule();
+            }
+        } else if (!mScheduled) {
+            finishStats();
+            mView.onAnimationFinished();
+        }
+    }
+
+    private void applyGesture() {
+        final float scale = mGestureScale != 1F ? mView.getScale() * mGestureScale : Float.NaN;
+        mView.applyAnimationFrame(scale, mGestureFocusX, mGestureFocusY, mGestureX, mGestureY);
+        mGesturePending = false;
+        mGestureScale = 1F;
+        mGestureX = 0;
+        mGestureY = 0;
+    }
+
+    private static float progress(long now, long start, long duration) {
+        return duration > 0 ? Math.min(1F, Math.max(0, now - start) / (float) duration) : 1F;
+    }
+
+    private void recordFrame(long frameTimeNanos) {
+        if (mFirstFrame == 0) {
+            mFirstFrame = frameTimeNanos;
+            mStats.frames = 0;
+            mStats.droppedFrames = 0;
+            mStats.maxFrameNanos = 0;
+        } else {
+            final long interval = frameTimeNanos - mLastFrame;
+            mStats.maxFrameNanos = Math.max(mStats.maxFrameNanos, interval);
+            if (interval > FRAME_NANOS * 3 / 2) {
+                mStats.droppedFrames += Math.round((float) interval / FRAME_NANOS) - 1;
+            }
+        }
+        mStats.frames++;
+        mStats.durationNanos = frameTimeNanos - mFirstFrame;
+    }
+
+    private void finishStats() {
+        if (mFirstFrame != 0) {
+            mLastStats = mStats.copy();
+            Log.d("Animation " + mLastStats);
+        }
+        mFirstFrame = 0;
+        mLastFrame = 0;
+    }
+
+    // Kept apart so that Choreographer is only loaded where it exists
+    @TargetApi(16)
+    private static class VsyncTicker implements Choreographer.FrameCallback {
+
+        private final FrameAnimator mAnimator;
+
+        VsyncTicker(FrameAnimator animator) {
+            mAnimator = animator;
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void remove() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mAnimator.doFrame(frameTimeNanos);
+        }
+    }
+}
@@ -16,18 +16,14 @@
 
 package com.soundcloud.android.crop;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Region;
-import android.os.Build;
 import android.util.TypedValue;
 import android.view.View;
 
@@ -38,6 +34,9 @@ import android.view.View;
  * overlayed on the image. There are two coordinate spaces in use. One is
  * image, another is screen. computeLayout() uses mMatrix to map from image
  * space to screen space.
+ *
+ * Drawing and dragging run for every frame and touch event, so they work
+ * on preallocated rectangles and allocate nothing.
  */
 class HighlightView {
 
@@ -55,9 +54,14 @@ class HighlightView {
     enum ModifyMode {None, Move, Grow}
 
     RectF mCropRect; // Image space
-    Rect mDrawRect; // Screen space
-    Matrix mMatrix;
-    private RectF mImageRect; // Image space
+    final Rect mDrawRect = new Rect(); // Screen space
+    final Matrix mMatrix = new Matrix();
+    private final RectF mImageRect = new RectF(); // Image space
+
+    // Scratch geometry
+    private final RectF mTempRectF = new RectF();
+    private final Rect mViewDrawingRect = new Rect();
+    private final Rect mInvalRect = new Rect();
 
     private final Paint mOutsidePaint = new Paint();
     private final Paint mOutlinePaint = new Paint();
@@ -93,14 +97,14 @@ class HighlightView {
     }
 
     public void setup(Matrix m, Rect imageRect, RectF cropRect, boolean maintainAspectRatio) {
-        mMatrix = new Matrix( m );
+        mMatrix.set( m );
 
         mCropRect = cropRect;
-        mImageRect = new RectF( imageRect );
+        mImageRect.set( imageRect );
         mMaintainAspectRatio = maintainAspectRatio;
 
         mInitialAspectRatio = mCropRect.width() / mCropRect.height();
-        mDrawRect = computeLayout();
+        computeLayout();
 
         mOutsidePaint.setARGB( 125, 50, 50, 50 );
         mOutlinePaint.setStyle( Paint.Style.STROKE );
@@ -120,25 +124,14 @@ class HighlightView {
     }
 
     protected void draw(Canvas canvas) {
-        canvas.save();
-        Path path = new Path();
         mOutlinePaint.setStrokeWidth( mOutlineWidth );
         if (!hasFocus()) {
             mOutlinePaint.setColor( Color.BLACK );
             canvas.drawRect( mDrawRect, mOutlinePaint );
         } else {
-            Rect viewDrawingRect = new Rect();
-            mContext.getDrawingRect( viewDrawingRect );
-
-            path.addRect( new RectF( mDrawRect ), Path.Direction.CW );
+            drawOutside( canvas );
             mOutlinePaint.setColor( mHighlightColor );
-
-            if (isClipPathSupported( canvas )) {
-                canvas.clipPath( path, Region.Op.DIFFERENCE );
-                canvas.drawRect( viewDrawingRect, mOutsidePaint );
-            }
-            canvas.restore();
-            canvas.drawPath( path, mOutlinePaint );
+            canvas.drawRect( mDrawRect, mOutlinePaint );
 
             if (mShowThirds) {
                 drawThirds( canvas );
@@ -147,13 +140,27 @@ class HighlightView {
         }
     }
 
-    @SuppressLint("NewApi")
-    private boolean isClipPathSupported(Canvas canvas) {
-        if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-            || Build.VERSION.SDK_INT > Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
-            return true;
-        } else {
-            return !canvas.isHardwareAccelerated();
+    /*
+     * Dims the view around the crop area as four bands: above, below, left and
+     * right of it. Clipping the crop area out instead is not supported by
+     * hardware acceleration on ICS, and is slower everywhere else.
+     */
+    private void drawOutside(Canvas canvas) {
+        final Rect view = mViewDrawingRect;
+        final Rect crop = mDrawRect;
+        mContext.getDrawingRect( view );
+        final int top = Math.max( crop.top, view.top );
+        final int bottom = Math.min( crop.bottom, view.bottom );
+
+        drawBand( canvas, view.left, view.top, view.right, Math.min( crop.top, view.bottom ) );
+        drawBand( canvas, view.left, Math.max( crop.bottom, view.top ), view.right, view.bottom );
+        drawBand( canvas, view.left, top, Math.min( crop.left, view.right ), bottom );
+        drawBand( canvas, Math.max( crop.right, view.left ), top, view.right, bottom );
+    }
+
+    private void drawBand(Canvas canvas, int left, int top, int right, int bottom) {
+        if (left < right && top < bottom) {
+            canvas.drawRect( left, top, right, bottom, mOutsidePaint );
         }
     }
 
@@ -250,7 +257,7 @@ class HighlightView {
 
     // Grows the cropping rectangle by (dx, dy) in image space
     void moveBy(float dx, float dy) {
-        Rect invalRect = new Rect( mDrawRect );
+        mInvalRect.set( mDrawRect );
 
         mCropRect.offset( dx, dy );
 
@@ -263,11 +270,8 @@ class HighlightView {
                 Math.min( 0, mImageRect.right - mCropRect.right),
                 Math.min( 0, mImageRect.bottom - mCropRect.bottom) );
 
-        mDrawRect = computeLayout();
-        invalRect.union( mDrawRect );
-        invalRect.inset( -(int)mHandleRadius*2, -(int)mHandleRadius*2 );
-
-        mContext.invalidate( invalRect );
+        computeLayout();
+        invalidateChange();
     }
 
     // Grows the cropping rectangle by (dx, dy) in image space.
@@ -283,7 +287,8 @@ class HighlightView {
         // Don't let the cropping rectangle grow too fast.
         // Grow at most half of the difference between the image rectangle and
         // the cropping rectangle.
-        RectF r = new RectF( mCropRect );
+        RectF r = mTempRectF;
+        r.set( mCropRect );
         if (dx > 0F && r.width() + 2 * dx > mImageRect.width()) {
             dx = (mImageRect.width() - r.width()) / 2F;
             if (mMaintainAspectRatio) {
@@ -323,9 +328,22 @@ class HighlightView {
             r.offset( 0F, -(r.bottom - mImageRect.bottom) );
         }
 
+        mInvalRect.set( mDrawRect );
         mCropRect.set( r );
-        mDrawRect = computeLayout();
-        mContext.invalidate();
+        computeLayout();
+        invalidateChange();
+    }
+
+    /*
+     * Redraws what changed since mInvalRect was set to the old draw rectangle.
+     * The dimmed bands only change between the old and new crop area, further
+     * out they look the same, so only the union of both is invalidated, plus
+     * the handles sticking out of it.
+     */
+    private void invalidateChange() {
+        mInvalRect.union( mDrawRect );
+        mInvalRect.inset( -(int)mHandleRadius*2, -(int)mHandleRadius*2 );
+        mContext.invalidate( mInvalRect );
     }
 
     // Returns the cropping rectangle in image space
@@ -334,17 +352,17 @@ class HighlightView {
                          (int) mCropRect.right, (int) mCropRect.bottom );
     }
 
-    // Maps the cropping rectangle from image space to screen space
+    // Maps the cropping rectangle from image space to screen space, into mDrawRect
     private Rect computeLayout() {
-        RectF r = new RectF( mCropRect.left, mCropRect.top,
-                             mCropRect.right, mCropRect.bottom );
-        mMatrix.mapRect( r );
-        return new Rect( Math.round( r.left ), Math.round( r.top ),
-                         Math.round( r.right ), Math.round( r.bottom ) );
+        RectF r = mTempRectF;
+        mMatrix.mapRect( r, mCropRect );
+        mDrawRect.set( Math.round( r.left ), Math.round( r.top ),
+                       Math.round( r.right ), Math.round( r.bottom ) );
+        return mDrawRect;
     }
 
     public void invalidate() {
-        mDrawRect = computeLayout();
+        computeLayout();
     }
 
     public boolean hasFocus() {
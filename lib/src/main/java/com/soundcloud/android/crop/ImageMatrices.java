@@ -0,0 +1,162 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Matrix;
+
+/*
+ * The matrices of ImageViewTouchBase and what is derived from them. The base
+ * matrices only change with the bitmap or the view size, the supplementary
+ * matrix with zoom and pan. The display, unrotated and inverse matrices and
+ * the scale are worked out again the first time they are asked for after one
+ * of those changed, and come from the cache on every other call, which is
+ * several times per touch event and frame.
+ *
+ * The matrices handed out are shared and must not be modified. Whoever
+ * changes the supplementary matrix calls suppChanged() afterwards.
+ */
+class ImageMatrices {
+
+    // This is the base transformation which is used to show the image
+    // initially.  The current computation for this shows the image in
+    // it's entirety, letterboxing as needed.  One could choose to
+    // show the image as cropped instead.
+    //
+    // This matrix is recomputed when we go from the thumbnail image to
+    // the full size image.
+    private final Matrix mBaseMatrix = new Matrix();
+
+    // The base matrix without the rotation of the bitmap, which is what the
+    // highlight views work with
+    private final Matrix mUnrotatedBaseMatrix = new Matrix();
+
+    // This is the supplementary transformation which reflects what
+    // the user has done in terms of zooming and panning.
+    //
+    // This matrix remains the same when we go from the thumbnail image
+    // to the full size image.
+    private final Matrix mSuppMatrix = new Matrix();
+
+    // Concatenations of the base matrices and the supplementary matrix
+    private final Matrix mDisplayMatrix = new Matrix();
+    private final Matrix mUnrotatedMatrix = new Matrix();
+    private final Matrix mInverseMatrix = new Matrix();
+
+    private final float[] mValues = new float[9];
+
+    // What the base matrices were computed for. Not the bitmap itself, pooled
+    // bitmaps come back with other pixels and possibly another size.
+    private boolean mHasBitmap;
+    private int mBitmapWidth;
+    private int mBitmapHeight;
+    private int mRotation;
+    private boolean mFlipped;
+    private int mViewWidth;
+    private int mViewHeight;
+
+    private boolean mDisplayDirty = true;
+    private boolean mUnrotatedDirty = true;
+    private boolean mInverseDirty = true;
+    private boolean mInvertible;
+    private boolean mScaleDirty = true;
+    private float mScale;
+
+    Matrix getSuppMatrix() {
+        return mSuppMatrix;
+    }
+
+    /**
+     * Recomputes the base matrices if the bitmap, its orientation or the view
+     * size differ from last time.
+     *
+     * @return Whether the base matrices changed
+     */
+    boolean setBase(RotateBitmap bitmap, int viewWidth, int viewHeight) {
+        final boolean hasBitmap = bitmap.getBitmap() != null;
+        final int bitmapWidth = hasBitmap ? bitmap.getWidth() : 0;
+        final int bitmapHeight = hasBitmap ? bitmap.getHeight() : 0;
+        if (hasBitmap == mHasBitmap && bitmapWidth == mBitmapWidth && bitmapHeight == mBitmapHeight
+                && bitmap.getRotation() == mRotation && bitmap.isFlipped() == mFlipped && viewWidth == mViewWidth && viewHeight == mViewHeight) {
+            return false;
+        }
+        mHasBitmap = hasBitmap;
+        mBitmapWidth = bitmapWidth;
+        mBitmapHeight = bitmapHeight;
+        mRotation = bitmap.getRotation();
+        mFlipped = bitmap.isFlipped();
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+
+        if (hasBitmap) {
+            getProperBaseMatrix(bitmap, viewWidth, viewHeight, mBaseMatrix, true);
+            getProperBaseMatrix(bitmap, viewWidth, viewHeight, mUnrotatedBaseMatrix, false);
+        } else {
+            mBaseMatrix.reset();
+            mUnrotatedBaseMatrix.reset();
+        }
+        mDisplayDirty = true;
+        mUnrotatedDirty = true;
+        mInverseDirty = true;
+        return true;
+    }
+
+    void suppChanged() {
+        mDisplayDirty = true;
+        mUnrotatedDirty = true;
+        mInverseDirty = true;
+        mScaleDirty = true;
+    }
+
+    Matrix getDisplayMatrix() {
+        if (mDisplayDirty) {
+            mDisplayMatrix.set(mBaseMatrix);
+            mDisplayMatrix.postConcat(mSuppMatrix);
+            mDisplayDirty = false;
+        }
+        return mDisplayMatrix;
+    }
+
+    Matrix getUnrotatedMatrix() {
+        if (mUnrotatedDirty) {
+            mUnrotatedMatrix.set(mUnrotatedBaseMatrix);
+            mUnrotatedMatrix.postConcat(mSuppMatrix);
+            mUnrotatedDirty = false;
+        }
+        return mUnrotatedMatrix;
+    }
+
+    // Maps the view back to the bitmap, null while the display matrix cannot be inverted
+    Matrix getInverseMatrix() {
+        if (mInverseDirty) {
+            mInvertible = getDisplayMatrix().invert(mInverseMatrix);
+            mInverseDirty = false;
+        }
+        return mInvertible ? mInverseMatrix : null;
+    }
+
+    float getScale() {
+        if (mScaleDirty) {
+            mSuppMatrix.getValues(mValues);
+            mScale = mValues[Matrix.MSCALE_X];
+            mScaleDirty = false;
+        }
+        return mScale;
+    }
+
+    // Setup the base matrix so that the image is centered and scaled properly.
+    private static void getProperBaseMatrix(RotateBitmap bitmap, float viewWidth, float viewHeight,
+                                            Matrix matrix, boolean includeRotation) {
+        float w = bitmap.getWidth();
+        float h = bitmap.getHeight();
+        matrix.reset();
+
+        // We limit up-scaling to 3x otherwise the result may look bad if it's a small icon
+        float widthScale = Math.min(viewWidth / w, 3.0f);
+        float heightScale = Math.min(viewHeight / h, 3.0f);
+        float scale = Math.min(widthScale, heightScale);
+
+        if (includeRotation) {
+            matrix.postConcat(bitmap.getRotateMatrix());
+        }
+        matrix.postScale(scale, scale);
+        matrix.postTranslate((viewWidth  - w * scale) / 2F, (viewHeight - h * scale) / 2F);
+    }
+}
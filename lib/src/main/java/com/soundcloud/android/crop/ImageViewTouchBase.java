@@ -32,30 +32,24 @@ import android.widget.ImageView;
 abstract class ImageViewTouchBase extends ImageView {
 
     private static final float SCALE_RATE = 1.25F;
+    // How far a bitmap pixel can be blown up on screen
+    static final float MAX_ZOOM = 4F;
 
-    // This is the base transformation which is used to show the image
-    // initially.  The current computation for this shows the image in
-    // it's entirety, letterboxing as needed.  One could choose to
-    // show the image as cropped instead.
-    //
-    // This matrix is recomputed when we go from the thumbnail image to
-    // the full size image.
-    protected Matrix mBaseMatrix = new Matrix();
-
-    // This is the supplementary transformation which reflects what
-    // the user has done in terms of zooming and panning.
-    //
-    // This matrix remains the same when we go from the thumbnail image
-    // to the full size image.
-    protected Matrix mSuppMatrix = new Matrix();
-
-    // This is the final matrix which is computed as the concatentation
-    // of the base matrix and the supplementary matrix.
-    private final Matrix mDisplayMatrix = new Matrix();
+    // Base, supplementary and display matrices, recomputed only after they changed
+    private final ImageMatrices mMatrices = new ImageMatrices();
+
+    // The zoom and pan of the user, call suppMatrixChanged() after changing it
+    protected final Matrix mSuppMatrix = mMatrices.getSuppMatrix();
 
     // Temporary buffer used for getting the values out of a matrix.
     private final float[] mMatrixValues = new float[9];
 
+    // Scratch rectangle for center(), which runs on every drag event
+    private final RectF mTempRect = new RectF();
+    // Result of computeCenterDelta()
+    private float mCenterDeltaX;
+    private float mCenterDeltaY;
+
     // The current bitmap being displayed.
     protected final RotateBitmap mBitmapDisplayed = new RotateBitmap(null, 0);
 
@@ -68,6 +62,8 @@ abstract class ImageViewTouchBase extends ImageView {
 
     protected Handler mHandler = new Handler();
 
+    private final FrameAnimator mAnimator = new FrameAnimator(this, mHandler);
+
     // ImageViewTouchBase will pass a Bitmap to the Recycler if it has finished
     // its use of that Bitmap
     public interface Recycler {
@@ -105,12 +101,17 @@ abstract class ImageViewTouchBase extends ImageView {
             mOnLayoutRunnable = null;
             r.run();
         }
-        if (mBitmapDisplayed.getBitmap() != null) {
-            getProperBaseMatrix(mBitmapDisplayed, mBaseMatrix, true);
+        if (mBitmapDisplayed.getBitmap() != null && mMatrices.setBase(mBitmapDisplayed, mThisWidth, mThisHeight)) {
             setImageMatrix(getImageViewMatrix());
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        mAnimator.cancel();
+        super.onDetachedFromWindow();
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_BACK && event.getRepeatCount() == 0) {
@@ -135,10 +136,10 @@ abstract class ImageViewTouchBase extends ImageView {
 
     @Override
     public void setImageBitmap(Bitmap bitmap) {
-        setImageBitmap(bitmap, 0);
+        setImageBitmap(bitmap, 0, false);
     }
 
-    private void setImageBitmap(Bitmap bitmap, int rotation) {
+    private void setImageBitmap(Bitmap bitmap, int rotation, boolean flipped) {
         super.setImageBitmap(bitmap);
         Drawable d = getDrawable();
         if (d != null) {
@@ -148,6 +149,7 @@ abstract class ImageViewTouchBase extends ImageView {
         Bitmap old = mBitmapDisplayed.getBitmap();
         mBitmapDisplayed.setBitmap(bitmap);
         mBitmapDisplayed.setRotation(rotation);
+        mBitmapDisplayed.setFlipped(flipped);
 
         if (old != null && old != bitmap && mRecycler != null) {
             mRecycler.recycle(old);
@@ -177,16 +179,16 @@ abstract class ImageViewTouchBase extends ImageView {
             return;
         }
 
+        mMatrices.setBase(bitmap, viewWidth, getHeight());
         if (bitmap.getBitmap() != null) {
-            getProperBaseMatrix(bitmap, mBaseMatrix, true);
-            setImageBitmap(bitmap.getBitmap(), bitmap.getRotation());
+            setImageBitmap(bitmap.getBitmap(), bitmap.getRotation(), bitmap.isFlipped());
         } else {
-            mBaseMatrix.reset();
             setImageBitmap(null);
         }
 
         if (resetSupp) {
             mSuppMatrix.reset();
+            suppMatrixChanged();
         }
         setImageMatrix(getImageViewMatrix());
         mMaxZoom = calculateMaxZoom();
@@ -198,13 +200,26 @@ abstract class ImageViewTouchBase extends ImageView {
     // is scaled larger than the view and is translated out of view
     // then translate it back into view (i.e. eliminate black bars).
     protected void center(boolean horizontal, boolean vertical) {
+        if (mBitmapDisplayed.getBitmap() == null) {
+            return;
+        }
+        computeCenterDelta(horizontal, vertical);
+        postTranslate(mCenterDeltaX, mCenterDeltaY);
+        setImageMatrix(getImageViewMatrix());
+    }
+
+    // How far center() would translate, into mCenterDeltaX and mCenterDeltaY
+    private void computeCenterDelta(boolean horizontal, boolean vertical) {
+        mCenterDeltaX = 0;
+        mCenterDeltaY = 0;
         final Bitmap bitmap = mBitmapDisplayed.getBitmap();
         if (bitmap == null) {
             return;
         }
         Matrix m = getImageViewMatrix();
 
-        RectF rect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        RectF rect = mTempRect;
+        rect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
         m.mapRect(rect);
 
         float height = rect.height();
@@ -234,8 +249,8 @@ abstract class ImageViewTouchBase extends ImageView {
             }
         }
 
-        postTranslate(deltaX, deltaY);
-        setImageMatrix(getImageViewMatrix());
+        mCenterDeltaX = deltaX;
+        mCenterDeltaY = deltaY;
     }
 
     private void init() {
@@ -253,44 +268,28 @@ abstract class ImageViewTouchBase extends ImageView {
     }
 
     protected float getScale() {
-        return getScale(mSuppMatrix);
+        return mMatrices.getScale();
     }
 
-    // Setup the base matrix so that the image is centered and scaled properly.
-    private void getProperBaseMatrix(RotateBitmap bitmap, Matrix matrix, boolean includeRotation) {
-        float viewWidth = getWidth();
-        float viewHeight = getHeight();
-
-        float w = bitmap.getWidth();
-        float h = bitmap.getHeight();
-        matrix.reset();
-
-        // We limit up-scaling to 3x otherwise the result may look bad if it's a small icon
-        float widthScale = Math.min(viewWidth / w, 3.0f);
-        float heightScale = Math.min(viewHeight / h, 3.0f);
-        float scale = Math.min(widthScale, heightScale);
-
-        if (includeRotation) {
-            matrix.postConcat(bitmap.getRotateMatrix());
-        }
-        matrix.postScale(scale, scale);
-        matrix.postTranslate((viewWidth  - w * scale) / 2F, (viewHeight - h * scale) / 2F);
+    // Must be called after every change to mSuppMatrix
+    protected void suppMatrixChanged() {
+        mMatrices.suppChanged();
     }
 
-    // Combine the base matrix and the supp matrix to make the final matrix
+    // Combine the base matrix and the supp matrix to make the final matrix.
+    // Shared, do not modify.
     protected Matrix getImageViewMatrix() {
-        // The final matrix is computed as the concatentation of the base matrix
-        // and the supplementary matrix
-        mDisplayMatrix.set(mBaseMatrix);
-        mDisplayMatrix.postConcat(mSuppMatrix);
-        return mDisplayMatrix;
+        return mMatrices.getDisplayMatrix();
     }
 
-    public Matrix getUnrotatedMatrix(){
-        Matrix unrotated = new Matrix();
-        getProperBaseMatrix(mBitmapDisplayed, unrotated, false);
-        unrotated.postConcat(mSuppMatrix);
-        return unrotated;
+    // Maps the view back to the bitmap, null if it cannot. Shared, do not modify.
+    protected Matrix getImageViewInverseMatrix() {
+        return mMatrices.getInverseMatrix();
+    }
+
+    // The image view matrix without the rotation of the bitmap. Shared, do not modify.
+    public Matrix getUnrotatedMatrix() {
+        return mMatrices.getUnrotatedMatrix();
     }
 
     protected float calculateMaxZoom() {
@@ -300,7 +299,7 @@ abstract class ImageViewTouchBase extends ImageView {
 
         float fw = (float) mBitmapDisplayed.getWidth()  / (float) mThisWidth;
         float fh = (float) mBitmapDisplayed.getHeight() / (float) mThisHeight;
-        return Math.max(fw, fh) * 4; // 400%
+        return Math.max(fw, fh) * MAX_ZOOM;
     }
 
     protected void zoomTo(float scale, float centerX, float centerY) {
@@ -312,28 +311,13 @@ abstract class ImageViewTouchBase extends ImageView {
         float deltaScale = scale / oldScale;
 
         mSuppMatrix.postScale(deltaScale, deltaScale, centerX, centerY);
+        suppMatrixChanged();
         setImageMatrix(getImageViewMatrix());
         center(true, true);
     }
 
-    protected void zoomTo(final float scale, final float centerX,
-                          final float centerY, final float durationMs) {
-        final float incrementPerMs = (scale - getScale()) / durationMs;
-        final float oldScale = getScale();
-        final long startTime = System.currentTimeMillis();
-
-        mHandler.post(new Runnable() {
-            public void run() {
-                long now = System.currentTimeMillis();
-                float currentMs = Math.min(durationMs, now - startTime);
-                float target = oldScale + (incrementPerMs * currentMs);
-                zoomTo(target, centerX, centerY);
-
-                if (currentMs < durationMs) {
-                    mHandler.post(this);
-                }
-            }
-        });
+    protected void zoomTo(float scale, float centerX, float centerY, float durationMs) {
+        mAnimator.animateZoom(Math.min(scale, mMaxZoom), centerX, centerY, durationMs);
     }
 
     protected void zoomTo(float scale) {
@@ -362,6 +346,7 @@ abstract class ImageViewTouchBase extends ImageView {
         float cy = getHeight() / 2F;
 
         mSuppMatrix.postScale(rate, rate, cx, cy);
+        suppMatrixChanged();
         setImageMatrix(getImageViewMatrix());
     }
 
@@ -374,24 +359,78 @@ abstract class ImageViewTouchBase extends ImageView {
         float cy = getHeight() / 2F;
 
         // Zoom out to at most 1x
-        Matrix tmp = new Matrix(mSuppMatrix);
-        tmp.postScale(1F / rate, 1F / rate, cx, cy);
-
-        if (getScale(tmp) < 1F) {
+        if (getScale() / rate < 1F) {
             mSuppMatrix.setScale(1F, 1F, cx, cy);
         } else {
             mSuppMatrix.postScale(1F / rate, 1F / rate, cx, cy);
         }
+        suppMatrixChanged();
         setImageMatrix(getImageViewMatrix());
         center(true, true);
     }
 
     protected void postTranslate(float dx, float dy) {
         mSuppMatrix.postTranslate(dx, dy);
+        suppMatrixChanged();
     }
 
     protected void panBy(float dx, float dy) {
         postTranslate(dx, dy);
         setImageMatrix(getImageViewMatrix());
     }
+
+    protected void panBy(float dx, float dy, float durationMs) {
+        mAnimator.animatePan(dx, dy, durationMs);
+    }
+
+    // Velocities in pixels per second
+    protected void fling(float velocityX, float velocityY) {
+        mAnimator.fling(velocityX, velocityY);
+    }
+
+    protected void stopAnimation() {
+        mAnimator.cancel();
+    }
+
+    protected boolean isAnimating() {
+        return mAnimator.isRunning();
+    }
+
+    // Frame times of the last zoom, pan or fling, null if there has not been one
+    FrameAnimator.Stats getLastAnimationStats() {
+        return mAnimator.getLastStats();
+    }
+
+    /*
+     * One step of the running animations and gestures: the scale to zoom to,
+     * NaN if not zooming, and how far to pan since the last step. Zoom, pan
+     * and centering all go into the supplementary matrix first, so the image
+     * matrix is set once per frame.
+     */
+    void applyAnimationFrame(float scale, float centerX, float centerY, float dx, float dy) {
+        if (!Float.isNaN(scale)) {
+            final float delta = Math.max(1F, Math.min(scale, mMaxZoom)) / getScale();
+            mSuppMatrix.postScale(delta, delta, centerX, centerY);
+        }
+        mSuppMatrix.postTranslate(dx, dy);
+        suppMatrixChanged();
+        computeCenterDelta(true, true);
+        mSuppMatrix.postTranslate(mCenterDeltaX, mCenterDeltaY);
+        suppMatrixChanged();
+        setImageMatrix(getImageViewMatrix());
+        onSuppMatrixChanged();
+    }
+
+    // Called when the supplementary matrix was changed without going through zoomTo() or postTranslate()
+    protected void onSuppMatrixChanged() {
+    }
+
+    // Called when all animations have run to the end
+    protected void onAnimationFinished() {
+    }
+
+    // Touch input since the last frame, applied together with the next frame
+    protected void addGesture(float scaleFactor, float focusX, float focusY, float dx, float dy) {
+        mAnimator.addGesture(scaleFactor, focusX, focusY, dx, dy);
+    }
 }
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 abstract class MonitoredActivity extends Activity {
 
     private final ArrayList<LifeCycleListener> mListeners = new ArrayList<LifeCycleListener>();
+    private boolean mDestroyed;
 
     public static interface LifeCycleListener {
         public void onActivityCreated(MonitoredActivity activity);
@@ -51,10 +52,15 @@ abstract class MonitoredActivity extends Activity {
         mListeners.remove(listener);
     }
 
+    // Listeners may remove themselves while being told, so callbacks go over a copy
+    private ArrayList<LifeCycleListener> copyListeners() {
+        return new ArrayList<LifeCycleListener>(mListeners);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        for (LifeCycleListener listener : mListeners) {
+        for (LifeCycleListener listener : copyListeners()) {
             listener.onActivityCreated(this);
         }
     }
@@ -62,15 +68,23 @@ abstract class MonitoredActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        for (LifeCycleListener listener : mListeners) {
+        mDestroyed = true;
+        for (LifeCycleListener listener : copyListeners()) {
             listener.onActivityDestroyed(this);
         }
     }
 
+    /**
+     * Like Activity.isDestroyed(), which needs API 17. UI thread only.
+     */
+    public boolean isActivityDestroyed() {
+        return mDestroyed;
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
-        for (LifeCycleListener listener : mListeners) {
+        for (LifeCycleListener listener : copyListeners()) {
             listener.onActivityStarted(this);
         }
     }
@@ -78,7 +92,7 @@ abstract class MonitoredActivity extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
-        for (LifeCycleListener listener : mListeners) {
+        for (LifeCycleListener listener : copyListeners()) {
             listener.onActivityStopped(this);
         }
     }
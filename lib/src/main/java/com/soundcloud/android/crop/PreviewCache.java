@@ -0,0 +1,166 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Process wide cache of decoded previews, so that a crop activity recreated
+ * after a configuration change, or a second crop of the same picture, shows
+ * the preview without decoding it again.
+ *
+ * Entries are keyed by URI, last modified time and length, so an edited file
+ * is decoded again. A preview is taken out of the cache while an activity
+ * shows it and put back when the activity is done with it. The cache holds
+ * at most its byte budget; the least recently used previews go to the
+ * BitmapPool beyond that.
+ */
+class PreviewCache {
+
+    // Share of the heap the cache may hold on to, one full size preview
+    private static final int CACHE_MEMORY_FRACTION = 4;
+
+    private static PreviewCache sInstance;
+
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(4, 0.75f, true);
+    private final long mMaxBytes;
+    private final BitmapPool mPool;
+    private long mBytes;
+
+    private int mHits;
+    private int mMisses;
+
+    static synchronized PreviewCache get() {
+        if (sInstance == null) {
+            sInstance = new PreviewCache(Runtime.getRuntime().maxMemory() / CACHE_MEMORY_FRACTION, BitmapPool.get());
+        }
+        return sInstance;
+    }
+
+    PreviewCache(long maxBytes, BitmapPool pool) {
+        mMaxBytes = maxBytes;
+        mPool = pool;
+    }
+
+    /**
+     * @return The cached preview, removed from the cache, or null
+     */
+    synchronized Entry take(Key key) {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mBytes -= BitmapPool.allocationSize(entry.bitmap);
+        mHits++;
+        return entry;
+    }
+
+    /**
+     * Keeps a preview that is no longer shown. Previews bigger than the whole
+     * cache go straight to the pool.
+     */
+    synchronized void put(Key key, Entry entry) {
+        if (entry.bitmap.isRecycled()) {
+            return;
+        }
+        Entry previous = mEntries.remove(key);
+        if (previous != null) {
+            mBytes -= BitmapPool.allocationSize(previous.bitmap);
+            if (previous.bitmap != entry.bitmap) {
+                mPool.put(previous.bitmap);
+            }
+        }
+        mEntries.put(key, entry);
+        mBytes += BitmapPool.allocationSize(entry.bitmap);
+        trimTo(mMaxBytes);
+    }
+
+    synchronized void clear() {
+        trimTo(0);
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreviewCache[" + mEntries.size() + " previews, " + mBytes + "/" + mMaxBytes
+                + " bytes, hits=" + mHits + ", misses=" + mMisses + "]";
+    }
+
+    private void trimTo(long maxBytes) {
+        Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            mBytes -= BitmapPool.allocationSize(eldest.bitmap);
+            mPool.put(eldest.bitmap);
+        }
+    }
+
+    static class Key {
+
+        final String uri;
+        final long lastModified;
+        final long length;
+
+        Key(Uri uri, long lastModified, long length) {
+            this.uri = uri.toString();
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return Key for the opened source, null if it cannot tell when the source changed
+         */
+        static Key of(Uri uri, CropSource source) {
+            final long lastModified = source.getLastModified();
+            return lastModified > 0 ? new Key(uri, lastModified, source.getLength()) : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return uri.equals(other.uri) && lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uri.hashCode();
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            return result;
+        }
+    }
+
+    /*
+     * A decoded preview, unrotated, with what is needed to map it back to the
+     * source image
+     */
+    static class Entry {
+
+        final Bitmap bitmap;
+        final int sampleSize;
+        final int sourceWidth;
+        final int sourceHeight;
+
+        Entry(Bitmap bitmap, int sampleSize, int sourceWidth, int sourceHeight) {
+            this.bitmap = bitmap;
+            this.sampleSize = sampleSize;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.soundcloud.android.crop.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Previews kept on disk between sessions, for pictures that are cropped over
+ * and over again such as profile and cover images.
+ *
+ * A preview is stored as its raw pixels behind a small header, so loading one
+ * is a memory mapped copy into a pooled bitmap with no decoding at all. Files
+ * are named after the source URI, last modified time and length, and the
+ * header repeats the fingerprint in case of a name collision. The least
+ * recently used files are deleted once the directory grows over its budget.
+ *
+ * Header, big endian: magic, version, width, height, config, sample size,
+ * source width, source height, EXIF orientation, last modified, length.
+ */
+class PreviewDiskCache {
+
+    private static final String DIRECTORY = "crop-previews";
+    private static final long MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final int MAGIC = 0x43525056; // CRPV
+    private static final int VERSION = 1;
+    // Header is padded so that the pixels start aligned
+    private static final int HEADER_SIZE = 64;
+    private static final int CONFIG_ARGB_8888 = 0;
+    private static final int CONFIG_RGB_565 = 1;
+
+    private static PreviewDiskCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    static synchronized PreviewDiskCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PreviewDiskCache(new File(context.getCacheDir(), DIRECTORY), MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    PreviewDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return The stored preview in a bitmap from the pool, or null
+     */
+    PreviewCache.Entry load(PreviewCache.Key key, int exifOrientation) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            final Bitmap.Config config = toConfig(buffer.getInt());
+            final int sampleSize = buffer.getInt();
+            final int sourceWidth = buffer.getInt();
+            final int sourceHeight = buffer.getInt();
+            final int orientation = buffer.getInt();
+            final long lastModified = buffer.getLong();
+            final long length = buffer.getLong();
+            if (config == null || orientation != exifOrientation
+                || lastModified != key.lastModified || length != key.length
+                || (long) width * height * DecodePlanner.bytesPerPixel(config) != buffer.capacity() - HEADER_SIZE) {
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            Bitmap bitmap = BitmapPool.get().getOrCreate(width, height, config);
+            bitmap.copyPixelsFromBuffer(buffer);
+            // Most recently used files are kept longest
+            file.setLastModified(System.currentTimeMillis());
+            return new PreviewCache.Entry(bitmap, sampleSize, sourceWidth, sourceHeight);
+        } catch (IOException e) {
+            Log.e("Cannot read cached preview: " + e.getMessage(), e);
+            return null;
+        } finally {
+            CropUtil.closeSilently(raf);
+        }
+    }
+
+    /**
+     * Writes the preview to disk. The bitmap must not change while this runs.
+     */
+    void store(PreviewCache.Key key, PreviewCache.Entry entry, int exifOrientation) {
+        final Bitmap bitmap = entry.bitmap;
+        final int config = fromConfig(bitmap.getConfig());
+        if (config < 0 || (!mDirectory.isDirectory() && !mDirectory.mkdirs())) {
+            return;
+        }
+        final File file = getFile(key);
+        final File temp = new File(file.getPath() + ".tmp");
+        final long pixelBytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(temp, "rw");
+            raf.setLength(HEADER_SIZE + pixelBytes);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + pixelBytes);
+            buffer.putInt(MAGIC)
+                  .putInt(VERSION)
+                  .putInt(bitmap.getWidth())
+                  .putInt(bitmap.getHeight())
+                  .putInt(config)
+                  .putInt(entry.sampleSize)
+                  .putInt(entry.sourceWidth)
+                  .putInt(entry.sourceHeight)
+                  .putInt(exifOrientation)
+                  .putLong(key.lastModified)
+                  .putLong(key.length);
+            buffer.position(HEADER_SIZE);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.force();
+        } catch (IOException e) {
+            Log.e("Cannot cache preview: " + e.getMessage(), e);
+            CropUtil.closeSilently(raf);
+            temp.delete();
+            return;
+        } finally {
+            CropUtil.closeSilently(raf);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        trim();
+    }
+
+    private synchronized void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxBytes; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private File getFile(PreviewCache.Key key) {
+        return new File(mDirectory, hash(key.uri + "|" + key.lastModified + "|" + key.length));
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Bitmap.Config toConfig(int config) {
+        switch (config) {
+            case CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            case CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+            default:
+                return null;
+        }
+    }
+
+    private static int fromConfig(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return CONFIG_ARGB_8888;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return CONFIG_RGB_565;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,284 @@
+package com.soundcloud.android.crop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+ * Scales ARGB rasters, as returned by Bitmap.getPixels(), with a separable
+ * filter. Pure Java so that it can be tested and benchmarked off device.
+ *
+ * Filter weights are computed once per call for each axis. Output rows are
+ * split into bands that run in parallel; every band keeps a small ring of
+ * horizontally filtered source rows, so the inner loops never allocate and
+ * memory use is a few rows per band rather than a second full image.
+ *
+ * Colors are filtered premultiplied by alpha, so transparent pixels do not
+ * bleed their color into the edges of opaque ones.
+ */
+class Resampler {
+
+    enum Filter {
+        // Area average, the cheapest way to downscale without aliasing
+        BOX(0.5) {
+            @Override
+            double weight(double x) {
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            }
+        },
+        BILINEAR(1) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                return x < 1 ? 1 - x : 0;
+            }
+        },
+        LANCZOS3(3) {
+            @Override
+            double weight(double x) {
+                if (x <= -3 || x >= 3) {
+                    return 0;
+                }
+                return sinc(x) * sinc(x / 3);
+            }
+        };
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        abstract double weight(double x);
+
+        private static double sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+    }
+
+    // Fewer output rows than this per band are not worth a task of their own
+    private static final int MIN_BAND_HEIGHT = 16;
+
+    private final Filter mFilter;
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+
+    /**
+     * @param executor Runs the bands in parallel, null to scale on the calling thread
+     * @param threads Number of bands to split the output into
+     */
+    Resampler(Filter filter, ExecutorService executor, int threads) {
+        mFilter = filter;
+        mExecutor = executor;
+        mThreads = executor != null ? Math.max(1, threads) : 1;
+    }
+
+    /**
+     * @throws CancellationException If the calling thread, or a band, was interrupted. The interrupt
+     *                               flag of the calling thread stays set and dst is incomplete.
+     */
+    void resample(final int[] src, final int srcWidth, final int srcHeight,
+                  final int[] dst, final int dstWidth, final int dstHeight) {
+        if (src.length < srcWidth * srcHeight || dst.length < dstWidth * dstHeight) {
+            throw new IllegalArgumentException("Raster too small for " + srcWidth + "x" + srcHeight
+                                               + " -> " + dstWidth + "x" + dstHeight);
+        }
+        final Weights horizontal = new Weights(mFilter, srcWidth, dstWidth);
+        final Weights vertical = new Weights(mFilter, srcHeight, dstHeight);
+
+        final int bands = Math.max(1, Math.min(mThreads, dstHeight / MIN_BAND_HEIGHT));
+        if (bands == 1) {
+            new Band(src, srcWidth, dst, dstWidth, horizontal, vertical, 0, dstHeight).run();
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands);
+        for (int i = 0; i < bands; i++) {
+            final int top = dstHeight * i / bands;
+            final int bottom = dstHeight * (i + 1) / bands;
+            futures.add(mExecutor.submit(new Band(src, srcWidth, dst, dstWidth, horizontal, vertical, top, bottom)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while scaling");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new IllegalStateException("Scaling failed", e.getCause());
+        }
+    }
+
+    /*
+     * Contributions of the source pixels to each output pixel along one axis:
+     * output i takes count[i] source pixels starting at start[i], weighted by
+     * values[i * stride ...].
+     */
+    static class Weights {
+
+        final int[] start;
+        final int[] count;
+        final float[] values;
+        final int stride;
+
+        Weights(Filter filter, int srcSize, int dstSize) {
+            final double scale = (double) srcSize / dstSize;
+            // Stretch the kernel when downscaling so that every source pixel contributes
+            final double filterScale = Math.max(1, scale);
+            final double support = filter.support * filterScale;
+            stride = (int) Math.ceil(support) * 2 + 1;
+            start = new int[dstSize];
+            count = new int[dstSize];
+            values = new float[dstSize * stride];
+
+            for (int i = 0; i < dstSize; i++) {
+                final double center = (i + 0.5) * scale;
+                final int min = Math.max(0, (int) Math.floor(center - support + 0.5));
+                final int max = Math.min(srcSize, Math.min(min + stride, (int) Math.floor(center + support + 0.5)));
+                double total = 0;
+                for (int x = min; x < max; x++) {
+                    final double w = filter.weight((x + 0.5 - center) / filterScale);
+                    values[i * stride + x - min] = (float) w;
+                    total += w;
+                }
+                if (total == 0) {
+                    // Can only happen for kernels narrower than a pixel, use the nearest one
+                    final int nearest = Math.min(srcSize - 1, Math.max(min, (int) center));
+                    start[i] = nearest;
+                    count[i] = 1;
+                    values[i * stride] = 1;
+                    continue;
+                }
+                for (int x = 0; x < max - min; x++) {
+                    values[i * stride + x] /= total;
+                }
+                start[i] = min;
+                count[i] = max - min;
+            }
+        }
+    }
+
+    private static class Band implements Runnable {
+
+        private final int[] mSrc;
+        private final int mSrcWidth;
+        private final int[] mDst;
+        private final int mDstWidth;
+        private final Weights mHorizontal;
+        private final Weights mVertical;
+        private final int mTop;
+        private final int mBottom;
+
+        Band(int[] src, int srcWidth, int[] dst, int dstWidth, Weights horizontal, Weights vertical,
+             int top, int bottom) {
+            mSrc = src;
+            mSrcWidth = srcWidth;
+            mDst = dst;
+            mDstWidth = dstWidth;
+            mHorizontal = horizontal;
+            mVertical = vertical;
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        @Override
+        public void run() {
+            // Rows needed by one output row are consecutive, so a ring as tall as the kernel holds them all
+            final int ringSize = mVertical.stride;
+            final float[][] ring = new float[ringSize][mDstWidth * 4];
+            final int[] ringRow = new int[ringSize];
+            for (int i = 0; i < ringSize; i++) {
+                ringRow[i] = -1;
+            }
+            final float[] sum = new float[mDstWidth * 4];
+
+            for (int y = mTop; y < mBottom; y++) {
+                // Not Thread.interrupted(), the caller has to see the flag to stop as well
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Interrupted while scaling");
+                }
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] = 0;
+                }
+                final int first = mVertical.start[y];
+                final int offset = y * mVertical.stride;
+                for (int k = 0; k < mVertical.count[y]; k++) {
+                    final int srcY = first + k;
+                    final int slot = srcY % ringSize;
+                    if (ringRow[slot] != srcY) {
+                        filterRow(srcY, ring[slot]);
+                        ringRow[slot] = srcY;
+                    }
+                    final float w = mVertical.values[offset + k];
+                    final float[] row = ring[slot];
+                    for (int i = 0; i < sum.length; i++) {
+                        sum[i] += w * row[i];
+                    }
+                }
+                writeRow(sum, y * mDstWidth);
+            }
+        }
+
+        // Horizontal pass of one source row, premultiplied a, r, g, b per output pixel
+        private void filterRow(int srcY, float[] out) {
+            final int rowStart = srcY * mSrcWidth;
+            final int[] start = mHorizontal.start;
+            final int[] count = mHorizontal.count;
+            final float[] values = mHorizontal.values;
+            final int stride = mHorizontal.stride;
+            for (int x = 0; x < mDstWidth; x++) {
+                float a = 0;
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                final int first = rowStart + start[x];
+                final int offset = x * stride;
+                for (int k = 0; k < count[x]; k++) {
+                    final int argb = mSrc[first + k];
+                    final float alpha = (argb >>> 24) * values[offset + k];
+                    a += alpha;
+                    r += ((argb >> 16) & 0xFF) * alpha;
+                    g += ((argb >> 8) & 0xFF) * alpha;
+                    b += (argb & 0xFF) * alpha;
+                }
+                out[x * 4] = a;
+                out[x * 4 + 1] = r;
+                out[x * 4 + 2] = g;
+                out[x * 4 + 3] = b;
+            }
+        }
+
+        private void writeRow(float[] sum, int dstOffset) {
+            for (int x = 0; x < mDstWidth; x++) {
+                final float a = sum[x * 4];
+                if (a <= 0) {
+                    mDst[dstOffset + x] = 0;
+                    continue;
+                }
+                final int alpha = clamp(a);
+                mDst[dstOffset + x] = alpha << 24
+                                      | clamp(sum[x * 4 + 1] / a) << 16
+                                      | clamp(sum[x * 4 + 2] / a) << 8
+                                      | clamp(sum[x * 4 + 3] / a);
+            }
+        }
+
+        private static int clamp(float value) {
+            final int rounded = (int) (value + 0.5f);
+            return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+        }
+    }
+}
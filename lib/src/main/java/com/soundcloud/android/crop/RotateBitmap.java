@@ -26,10 +26,17 @@ class RotateBitmap {
 
     private Bitmap mBitmap;
     private int mRotation;
+    // Mirrored left to right before the rotation, for the mirrored EXIF orientations
+    private boolean mFlipped;
 
     public RotateBitmap(Bitmap bitmap, int rotation) {
+        this(bitmap, rotation, false);
+    }
+
+    public RotateBitmap(Bitmap bitmap, int rotation, boolean flipped) {
         mBitmap = bitmap;
         mRotation = rotation % 360;
+        mFlipped = flipped;
     }
 
     public void setRotation(int rotation) {
@@ -40,6 +47,14 @@ class RotateBitmap {
         return mRotation;
     }
 
+    public void setFlipped(boolean flipped) {
+        mFlipped = flipped;
+    }
+
+    public boolean isFlipped() {
+        return mFlipped;
+    }
+
     public Bitmap getBitmap() {
         return mBitmap;
     }
@@ -51,13 +66,16 @@ class RotateBitmap {
     public Matrix getRotateMatrix() {
         // By default this is an identity matrix
         Matrix matrix = new Matrix();
-        if (mBitmap != null && mRotation != 0) {
+        if (mBitmap != null && (mRotation != 0 || mFlipped)) {
             // We want to do the rotation at origin, but since the bounding
             // rectangle will be changed after rotation, so the delta values
             // are based on old & new width/height respectively.
             int cx = mBitmap.getWidth() / 2;
             int cy = mBitmap.getHeight() / 2;
             matrix.preTranslate(-cx, -cy);
+            if (mFlipped) {
+                matrix.postScale(-1, 1);
+            }
             matrix.postRotate(mRotation);
             matrix.postTranslate(getWidth() / 2, getHeight() / 2);
         }
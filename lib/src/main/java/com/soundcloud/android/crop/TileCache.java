@@ -0,0 +1,60 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Least recently used cache of decoded tiles, bounded by the bytes of the
+ * bitmaps it holds. Evicted tiles are recycled right away.
+ *
+ * Only accessed from the UI thread.
+ */
+class TileCache {
+
+    private final LinkedHashMap<Long, Bitmap> mTiles = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes;
+
+    TileCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    Bitmap get(long key) {
+        return mTiles.get(key);
+    }
+
+    void put(long key, Bitmap tile) {
+        Bitmap old = mTiles.put(key, tile);
+        if (old != null) {
+            mBytes -= byteCount(old);
+            old.recycle();
+        }
+        mBytes += byteCount(tile);
+        trimTo(mMaxBytes);
+    }
+
+    void clear() {
+        trimTo(-1);
+    }
+
+    long getBytes() {
+        return mBytes;
+    }
+
+    private void trimTo(long maxBytes) {
+        Iterator<Map.Entry<Long, Bitmap>> it = mTiles.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Bitmap eldest = it.next().getValue();
+            it.remove();
+            mBytes -= byteCount(eldest);
+            eldest.recycle();
+        }
+    }
+
+    private static long byteCount(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
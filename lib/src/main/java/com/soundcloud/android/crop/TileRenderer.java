@@ -0,0 +1,224 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.view.View;
+
+import com.soundcloud.android.crop.util.Log;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Draws sharp tiles over the sampled preview once the user zooms in further
+ * than the preview resolution allows.
+ *
+ * Only the tiles covering the visible part of the image are decoded, at the
+ * sample size that matches the current display scale. Decoding happens on a
+ * small background pool; the tiles are kept in a byte bounded TileCache, so
+ * memory use does not depend on the size of the source image.
+ */
+@TargetApi(10)
+class TileRenderer {
+
+    private static final int TILE_SIZE = 256;
+    private static final int DECODE_THREADS = 2;
+
+    private static final ExecutorService sDecodePool = Executors.newFixedThreadPool(DECODE_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "crop-tile-decoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final View mView;
+    private final BitmapRegionDecoder mDecoder;
+    private final Object mDecoderLock = new Object();
+    private final int mPreviewSampleSize;
+    private final Bitmap.Config mConfig;
+    private final TileCache mCache;
+
+    // Tiles queued or being decoded, UI thread only
+    private final HashSet<Long> mPending = new HashSet<Long>();
+
+    private final Matrix mTileMatrix = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Currently visible tile range, read by the decode threads to skip stale requests
+    private volatile int mVisibleSample;
+    private volatile int mVisibleLeft;
+    private volatile int mVisibleTop;
+    private volatile int mVisibleRight;
+    private volatile int mVisibleBottom;
+
+    private volatile boolean mRecycled;
+
+    /**
+     * @param view View the tiles are drawn into
+     * @param decoder Region decoder for the source image, owned by the renderer from now on
+     * @param previewSampleSize Sample size the preview bitmap was decoded with
+     * @param config Bitmap config used for the tiles
+     * @param maxCacheBytes Memory the decoded tiles may use
+     */
+    TileRenderer(View view, BitmapRegionDecoder decoder, int previewSampleSize,
+                 Bitmap.Config config, long maxCacheBytes) {
+        mView = view;
+        mDecoder = decoder;
+        mPreviewSampleSize = previewSampleSize;
+        mConfig = config;
+        mCache = new TileCache(maxCacheBytes);
+    }
+
+    /**
+     * Draws the visible tiles and queues decoding of the missing ones.
+     *
+     * @param displayMatrix Matrix that maps the preview bitmap to the view
+     * @param inverseMatrix Inverse of displayMatrix, null if it has none
+     */
+    void draw(Canvas canvas, Matrix displayMatrix, Matrix inverseMatrix) {
+        if (mRecycled) {
+            return;
+        }
+        final int tileSample = getTileSampleSize(displayMatrix);
+        if (tileSample >= mPreviewSampleSize || inverseMatrix == null) {
+            // The preview has enough detail for this scale
+            mVisibleSample = 0;
+            return;
+        }
+
+        final int span = TILE_SIZE * tileSample;
+        final int columns = (mDecoder.getWidth() + span - 1) / span;
+        final int rows = (mDecoder.getHeight() + span - 1) / span;
+
+        mVisibleRect.set(0, 0, mView.getWidth(), mView.getHeight());
+        mVisibleRect.offset(-mView.getPaddingLeft(), -mView.getPaddingTop());
+        inverseMatrix.mapRect(mVisibleRect);
+        final int left = Math.max(0, (int) (mVisibleRect.left * mPreviewSampleSize / span));
+        final int top = Math.max(0, (int) (mVisibleRect.top * mPreviewSampleSize / span));
+        final int right = Math.min(columns - 1, (int) (mVisibleRect.right * mPreviewSampleSize / span));
+        final int bottom = Math.min(rows - 1, (int) (mVisibleRect.bottom * mPreviewSampleSize / span));
+
+        mVisibleLeft = left;
+        mVisibleTop = top;
+        mVisibleRight = right;
+        mVisibleBottom = bottom;
+        mVisibleSample = tileSample;
+
+        canvas.save();
+        canvas.translate(mView.getPaddingLeft(), mView.getPaddingTop());
+        final float tileScale = (float) tileSample / mPreviewSampleSize;
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                final long key = tileKey(tileSample, column, row);
+                Bitmap tile = mCache.get(key);
+                if (tile != null) {
+                    mTileMatrix.setScale(tileScale, tileScale);
+                    mTileMatrix.postTranslate((float) column * span / mPreviewSampleSize,
+                                              (float) row * span / mPreviewSampleSize);
+                    mTileMatrix.postConcat(displayMatrix);
+                    canvas.drawBitmap(tile, mTileMatrix, mPaint);
+                } else if (!mPending.contains(key)) {
+                    requestTile(key, tileSample, column, row);
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Stops decoding and releases all tiles and the region decoder.
+     */
+    void recycle() {
+        mRecycled = true;
+        mCache.clear();
+        synchronized (mDecoderLock) {
+            mDecoder.recycle();
+        }
+    }
+
+    // Largest power of two sample size that still gives at least one source pixel per screen pixel
+    private int getTileSampleSize(Matrix displayMatrix) {
+        final float sourcePerScreen = mPreviewSampleSize / displayMatrix.mapRadius(1F);
+        int sample = 1;
+        while (sample * 2 <= sourcePerScreen) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private void requestTile(final long key, final int tileSample, final int column, final int row) {
+        mPending.add(key);
+        sDecodePool.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap tile = isVisible(tileSample, column, row) ? decodeTile(tileSample, column, row) : null;
+                mView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending.remove(key);
+                        if (tile == null) {
+                            return;
+                        }
+                        if (mRecycled) {
+                            tile.recycle();
+                        } else {
+                            mCache.put(key, tile);
+                            mView.invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean isVisible(int tileSample, int column, int row) {
+        return !mRecycled && tileSample == mVisibleSample
+                && column >= mVisibleLeft && column <= mVisibleRight
+                && row >= mVisibleTop && row <= mVisibleBottom;
+    }
+
+    private Bitmap decodeTile(int tileSample, int column, int row) {
+        final int span = TILE_SIZE * tileSample;
+        final Rect region = new Rect(column * span, row * span, (column + 1) * span, (row + 1) * span);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = tileSample;
+        options.inPreferredConfig = mConfig;
+        options.inDither = mConfig == Bitmap.Config.RGB_565;
+        synchronized (mDecoderLock) {
+            if (mRecycled) {
+                return null;
+            }
+            region.intersect(0, 0, mDecoder.getWidth(), mDecoder.getHeight());
+            try {
+                return mDecoder.decodeRegion(region, options);
+            } catch (OutOfMemoryError e) {
+                Log.e("Not enough memory for tile " + region, e);
+                return null;
+            }
+        }
+    }
+
+    private static long tileKey(int tileSample, int column, int row) {
+        return ((long) tileSample << 48) | ((long) row << 24) | column;
+    }
+}
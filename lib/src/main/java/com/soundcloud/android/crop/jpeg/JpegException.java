@@ -0,0 +1,16 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.IOException;
+
+/**
+ * Thrown when JPEG data is corrupt or uses a coding process the lossless
+ * transforms do not support (progressive, arithmetic, 12-bit, ...).
+ */
+public class JpegException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public JpegException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,227 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Everything in a sequential Huffman JPEG up to and including the first SOS
+ * header: frame, quantization and Huffman tables, restart interval and the
+ * scan component selectors. Parsing stops right before the entropy-coded data.
+ */
+class JpegHeader {
+
+    static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        HuffmanTable dcTable;
+        HuffmanTable acTable;
+    }
+
+    int frameMarker;
+    int width;
+    int height;
+    Component[] components;
+    int restartInterval;
+
+    // Quantization tables in zigzag order, null if undefined
+    final int[][] quantTables = new int[4][];
+    final boolean[] quantTable16Bit = new boolean[4];
+
+    // APP0 (JFIF) and APP14 (Adobe colour transform) segments, they are valid for any geometry
+    final List<byte[]> colorSegments = new ArrayList<byte[]>();
+
+    private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+    private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+
+    static JpegHeader read(JpegReader reader) throws IOException {
+        JpegHeader header = new JpegHeader();
+        header.parse(reader);
+        return header;
+    }
+
+    int getMaxH() {
+        int max = 1;
+        for (Component c : components) {
+            max = Math.max(max, c.h);
+        }
+        return max;
+    }
+
+    int getMaxV() {
+        int max = 1;
+        for (Component c : components) {
+            max = Math.max(max, c.v);
+        }
+        return max;
+    }
+
+    int getMcuWidth() {
+        return 8 * getMaxH();
+    }
+
+    int getMcuHeight() {
+        return 8 * getMaxV();
+    }
+
+    private void parse(JpegReader reader) throws IOException {
+        if (reader.readMarker() != JpegMarker.SOI) {
+            throw new JpegException("Not a JPEG");
+        }
+        while (true) {
+            final int marker = reader.readMarker();
+            if (marker == JpegMarker.SOF0 || marker == JpegMarker.SOF1) {
+                readFrame(reader, marker);
+            } else if (marker > JpegMarker.SOF1 && marker <= JpegMarker.SOF15
+                    && marker != JpegMarker.DHT && marker != JpegMarker.JPG && marker != JpegMarker.DAC) {
+                throw new JpegException("Unsupported JPEG coding process 0x" + Integer.toHexString(marker));
+            } else if (marker == JpegMarker.DHT) {
+                readHuffmanTables(reader);
+            } else if (marker == JpegMarker.DQT) {
+                readQuantTables(reader);
+            } else if (marker == JpegMarker.DRI) {
+                reader.readUnsignedShort();
+                restartInterval = reader.readUnsignedShort();
+            } else if (marker == JpegMarker.SOS) {
+                readScan(reader);
+                return;
+            } else if (marker == JpegMarker.APP0 || marker == JpegMarker.APP14) {
+                final int length = reader.readUnsignedShort();
+                byte[] segment = new byte[length + 2];
+                segment[0] = (byte) 0xFF;
+                segment[1] = (byte) marker;
+                segment[2] = (byte) (length >> 8);
+                segment[3] = (byte) length;
+                reader.readFully(segment, 4, length - 2);
+                colorSegments.add(segment);
+            } else if (marker == JpegMarker.SOI || marker == JpegMarker.EOI
+                    || (marker >= JpegMarker.RST0 && marker <= JpegMarker.RST7)) {
+                throw new JpegException("Unexpected marker 0x" + Integer.toHexString(marker));
+            } else {
+                reader.skip(reader.readUnsignedShort() - 2);
+            }
+        }
+    }
+
+    private void readFrame(JpegReader reader, int marker) throws IOException {
+        reader.readUnsignedShort();
+        final int precision = reader.read();
+        if (precision != 8) {
+            throw new JpegException("Unsupported sample precision " + precision);
+        }
+        frameMarker = marker;
+        height = reader.readUnsignedShort();
+        width = reader.readUnsignedShort();
+        if (width == 0 || height == 0) {
+            // Height defined by a DNL marker after the first scan
+            throw new JpegException("Unsupported image size " + width + "x" + height);
+        }
+        final int count = reader.read();
+        if (count != 1 && count != 3) {
+            throw new JpegException("Unsupported component count " + count);
+        }
+        components = new Component[count];
+        for (int i = 0; i < count; i++) {
+            Component c = new Component();
+            c.id = reader.read();
+            final int sampling = reader.read();
+            c.h = sampling >> 4;
+            c.v = sampling & 0x0F;
+            c.quantTable = reader.read() & 0x03;
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+                throw new JpegException("Invalid sampling factors");
+            }
+            components[i] = c;
+        }
+        if (count == 1) {
+            // A single component scan is non-interleaved, its MCU is one block
+            components[0].h = 1;
+            components[0].v = 1;
+        }
+    }
+
+    private void readHuffmanTables(JpegReader reader) throws IOException {
+        int remaining = reader.readUnsignedShort() - 2;
+        while (remaining > 0) {
+            final int classAndId = reader.read();
+            final int[] counts = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                counts[i] = reader.read();
+                total += counts[i];
+            }
+            if (total > 256) {
+                throw new JpegException("Invalid Huffman table");
+            }
+            final int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = reader.read();
+            }
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if ((classAndId >> 4) == 0) {
+                mDcTables[classAndId & 0x03] = table;
+            } else {
+                mAcTables[classAndId & 0x03] = table;
+            }
+            remaining -= 17 + total;
+        }
+    }
+
+    private void readQuantTables(JpegReader reader) throws IOException {
+        int remaining = reader.readUnsignedShort() - 2;
+        while (remaining > 0) {
+            final int precisionAndId = reader.read();
+            final int id = precisionAndId & 0x03;
+            final boolean wide = (precisionAndId >> 4) != 0;
+            final int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                table[i] = wide ? reader.readUnsignedShort() : reader.read();
+            }
+            quantTables[id] = table;
+            quantTable16Bit[id] = wide;
+            remaining -= 1 + (wide ? 128 : 64);
+        }
+    }
+
+    private void readScan(JpegReader reader) throws IOException {
+        if (components == null) {
+            throw new JpegException("Scan before frame header");
+        }
+        reader.readUnsignedShort();
+        final int count = reader.read();
+        if (count != components.length) {
+            // Sequential images split into one scan per component are rare, not worth supporting
+            throw new JpegException("Unsupported non-interleaved scan");
+        }
+        final Component[] scanOrder = new Component[count];
+        for (int i = 0; i < count; i++) {
+            final int id = reader.read();
+            final int tables = reader.read();
+            Component c = findComponent(id);
+            scanOrder[i] = c;
+            c.dcTable = mDcTables[tables >> 4 & 0x03];
+            c.acTable = mAcTables[tables & 0x03];
+            if (c.dcTable == null || c.acTable == null) {
+                throw new JpegException("Missing Huffman table for component " + id);
+            }
+            if (quantTables[c.quantTable] == null) {
+                throw new JpegException("Missing quantization table for component " + id);
+            }
+        }
+        // Blocks in an MCU follow the scan order
+        components = scanOrder;
+        // Spectral selection and successive approximation are fixed for sequential images
+        reader.skip(3);
+    }
+
+    private Component findComponent(int id) throws JpegException {
+        for (Component c : components) {
+            if (c.id == id) {
+                return c;
+            }
+        }
+        throw new JpegException("Unknown component " + id);
+    }
+}
@@ -0,0 +1,456 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The few things about a JPEG that are needed before decoding it: EXIF
+ * orientation, image size and where the EXIF thumbnail is.
+ * <p>
+ * Only the marker segments in front of the first scan are read, and of those
+ * only the EXIF APP1 segment is kept in memory (at most 64 KB), so reading a
+ * stream from a content provider is as cheap as reading a file.
+ * <p>
+ * When asked to, the ICC profile and XMP segments are kept as well, so that
+ * {@link JpegMetadataOutputStream} can copy them into a cropped image.
+ */
+public class JpegMetadata {
+
+    // EXIF orientation values, the same as the ExifInterface constants
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+    private static final byte[] XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0".getBytes();
+    private static final byte[] ICC_HEADER = "ICC_PROFILE\0".getBytes();
+    // XMP copy of the EXIF orientation, as attribute or element
+    private static final byte[] XMP_ORIENTATION = "tiff:Orientation".getBytes();
+
+    // TIFF tags, EXIF 2.3 section 4.6
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+
+    private static final int IFD_MAIN = 0;
+    private static final int IFD_THUMBNAIL = 1;
+    private static final int IFD_EXIF = 2;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private int mOrientation = ORIENTATION_NORMAL;
+    private int mWidth;
+    private int mHeight;
+    private long mThumbnailOffset = -1;
+    private int mThumbnailLength;
+
+    private final boolean mKeepSegments;
+    private Tiff mExif;
+    private byte[] mXmpSegment;
+    private final List<byte[]> mIccSegments = new ArrayList<byte[]>();
+
+    private JpegMetadata(boolean keepSegments) {
+        mKeepSegments = keepSegments;
+    }
+
+    /**
+     * @param in JPEG stream, positioned at the start. Left just past the
+     *           first SOS marker (or EOI) and not closed.
+     * @throws JpegException If the stream is not a JPEG
+     */
+    public static JpegMetadata read(InputStream in) throws IOException {
+        return read(in, false);
+    }
+
+    /**
+     * @param keepSegments Also keep the EXIF, ICC profile and XMP segments, to
+     *                     write them out again with {@link JpegMetadataOutputStream}
+     */
+    public static JpegMetadata read(InputStream in, boolean keepSegments) throws IOException {
+        JpegMetadata metadata = new JpegMetadata(keepSegments);
+        metadata.parse(new JpegReader(in));
+        return metadata;
+    }
+
+    /**
+     * @return One of the ORIENTATION_ constants, {@link #ORIENTATION_NORMAL}
+     *         when there is no EXIF orientation or it is out of range
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * @return Width as stored, before the orientation is applied
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return Height as stored, before the orientation is applied
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean hasThumbnail() {
+        return mThumbnailOffset >= 0 && mThumbnailLength > 0;
+    }
+
+    /**
+     * @return Position of the JPEG thumbnail from the start of the stream, -1 if there is none
+     */
+    public long getThumbnailOffset() {
+        return mThumbnailOffset;
+    }
+
+    public int getThumbnailLength() {
+        return mThumbnailLength;
+    }
+
+    /*
+     * APP1 segment for an upright copy of the image at the given size: the
+     * orientation is reset to normal, the EXIF pixel dimensions are updated
+     * and the thumbnail, which shows the whole uncropped image, is dropped.
+     * Null without EXIF data or if the segments were not kept.
+     */
+    byte[] getExifSegment(int width, int height) {
+        if (mExif == null) {
+            return null;
+        }
+        byte[] tiff = mExif.toUpright(width, height);
+        byte[] segment = new byte[4 + EXIF_HEADER.length + tiff.length];
+        writeSegmentHeader(segment, JpegMarker.APP1, segment.length - 2);
+        System.arraycopy(EXIF_HEADER, 0, segment, 4, EXIF_HEADER.length);
+        System.arraycopy(tiff, 0, segment, 4 + EXIF_HEADER.length, tiff.length);
+        return segment;
+    }
+
+    /*
+     * Complete APP1 segment, marker included, or null. Like the EXIF segment
+     * it describes an upright image, so a tiff:Orientation in it is set to
+     * normal too, otherwise viewers that prefer XMP would rotate the crop
+     * again. The value is one digit either way, the segment keeps its length.
+     */
+    byte[] getXmpSegment() {
+        if (mXmpSegment == null) {
+            return null;
+        }
+        byte[] segment = mXmpSegment.clone();
+        for (int i = 4 + XMP_HEADER.length; i < segment.length; i++) {
+            if (!startsWith(segment, XMP_ORIENTATION, i)) {
+                continue;
+            }
+            final int value = findXmpValue(segment, i + XMP_ORIENTATION.length);
+            if (value >= 0 && segment[value] >= '1' && segment[value] <= '8'
+                && (value + 1 == segment.length || segment[value + 1] < '0' || segment[value + 1] > '9')) {
+                segment[value] = '0' + ORIENTATION_NORMAL;
+            }
+        }
+        return segment;
+    }
+
+    // Start of the value after a property name, tiff:Orientation="6" or <tiff:Orientation>6<, -1 if neither
+    private static int findXmpValue(byte[] xmp, int position) {
+        position = skipSpace(xmp, position);
+        int value = -1;
+        if (position < xmp.length && xmp[position] == '>') {
+            value = skipSpace(xmp, position + 1);
+        } else if (position < xmp.length && xmp[position] == '=') {
+            position = skipSpace(xmp, position + 1);
+            if (position < xmp.length && (xmp[position] == '"' || xmp[position] == '\'')) {
+                value = position + 1;
+            }
+        }
+        return value < xmp.length ? value : -1;
+    }
+
+    private static int skipSpace(byte[] data, int position) {
+        while (position < data.length && (data[position] == ' ' || data[position] == '\t'
+                                          || data[position] == '\n' || data[position] == '\r')) {
+            position++;
+        }
+        return position;
+    }
+
+    // Complete APP2 segments of the ICC profile in chunk order, marker included
+    List<byte[]> getIccSegments() {
+        return mIccSegments;
+    }
+
+    private void parse(JpegReader reader) throws IOException {
+        if (reader.readMarker() != JpegMarker.SOI) {
+            throw new JpegException("Not a JPEG");
+        }
+        while (true) {
+            final int marker = reader.readMarker();
+            if (marker == JpegMarker.SOS || marker == JpegMarker.EOI) {
+                return;
+            }
+            if (marker == JpegMarker.TEM || (marker >= JpegMarker.RST0 && marker <= JpegMarker.RST7)) {
+                // Standalone markers have no length
+                continue;
+            }
+            final int length = reader.readUnsignedShort() - 2;
+            if (length < 0) {
+                throw new JpegException("Corrupt segment length");
+            }
+            if (marker == JpegMarker.APP1) {
+                readApp1(reader, length);
+            } else if (marker == JpegMarker.APP2 && mKeepSegments) {
+                readApp2(reader, length);
+            } else if (JpegMarker.isFrame(marker)) {
+                readFrame(reader, length);
+            } else {
+                reader.skip(length);
+            }
+        }
+    }
+
+    private void readFrame(JpegReader reader, int length) throws IOException {
+        if (length < 5) {
+            throw new JpegException("Corrupt frame header");
+        }
+        reader.read(); // Sample precision
+        mHeight = reader.readUnsignedShort();
+        mWidth = reader.readUnsignedShort();
+        reader.skip(length - 5);
+    }
+
+    private void readApp1(JpegReader reader, int length) throws IOException {
+        if (length < EXIF_HEADER.length) {
+            reader.skip(length);
+            return;
+        }
+        byte[] header = new byte[EXIF_HEADER.length];
+        reader.readFully(header, 0, header.length);
+        if (!startsWith(header, EXIF_HEADER, 0)) {
+            if (mKeepSegments && mXmpSegment == null) {
+                byte[] segment = readSegment(reader, JpegMarker.APP1, header, length);
+                if (startsWith(segment, XMP_HEADER, 4)) {
+                    mXmpSegment = segment;
+                }
+            } else {
+                reader.skip(length - header.length);
+            }
+            return;
+        }
+        // TIFF offsets are relative to the byte after the EXIF header
+        final long tiffStart = reader.getBytesRead();
+        byte[] tiff = new byte[length - header.length];
+        reader.readFully(tiff, 0, tiff.length);
+        Tiff exif = new Tiff(tiff);
+        if (exif.read(tiffStart) && mKeepSegments) {
+            mExif = exif;
+        }
+    }
+
+    private void readApp2(JpegReader reader, int length) throws IOException {
+        byte[] segment = readSegment(reader, JpegMarker.APP2, new byte[0], length);
+        if (startsWith(segment, ICC_HEADER, 4)) {
+            mIccSegments.add(segment);
+        }
+    }
+
+    // Whole segment with marker and length, the first bytes of the payload have been read already
+    private static byte[] readSegment(JpegReader reader, int marker, byte[] start, int length) throws IOException {
+        byte[] segment = new byte[4 + length];
+        writeSegmentHeader(segment, marker, length + 2);
+        System.arraycopy(start, 0, segment, 4, start.length);
+        reader.readFully(segment, 4 + start.length, length - start.length);
+        return segment;
+    }
+
+    private static void writeSegmentHeader(byte[] segment, int marker, int length) {
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) (length >> 8);
+        segment[3] = (byte) length;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix, int offset) {
+        if (data.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Reads IFD0 for the orientation, IFD1 for the thumbnail and the EXIF IFD
+     * for the pixel dimensions, remembering where those values are so that
+     * they can be patched in a copy. Anything malformed is ignored, EXIF
+     * written by cameras and editors is often slightly broken and the image
+     * itself is still fine.
+     */
+    private class Tiff {
+
+        private final byte[] mData;
+        private boolean mLittleEndian;
+
+        // Positions in mData, -1 if not present
+        private int mOrientationEntry = -1;
+        private int mWidthEntry = -1;
+        private int mHeightEntry = -1;
+        private int mThumbnailIfdPointer = -1;
+        private int mThumbnailStart = -1;
+
+        Tiff(byte[] data) {
+            mData = data;
+        }
+
+        // Returns false if this is not TIFF data at all
+        boolean read(long tiffStart) {
+            if (mData.length < 8) {
+                return false;
+            }
+            if (mData[0] == 'I' && mData[1] == 'I') {
+                mLittleEndian = true;
+            } else if (mData[0] != 'M' || mData[1] != 'M') {
+                return false;
+            }
+            if (readShort(2) != 42) {
+                return false;
+            }
+            final int ifd0 = readInt(4);
+            final int ifd1 = readIfd(ifd0, tiffStart, IFD_MAIN);
+            if (ifd1 > 0 && ifd1 != ifd0) {
+                readIfd(ifd1, tiffStart, IFD_THUMBNAIL);
+            }
+            return true;
+        }
+
+        // Returns the offset of the next IFD, 0 if there is none
+        private int readIfd(int offset, long tiffStart, int kind) {
+            // Offsets come from the file, compared by subtraction so they cannot overflow
+            if (offset < 8 || offset > mData.length - 2) {
+                return 0;
+            }
+            final int count = readShort(offset);
+            if (count > (mData.length - offset - 2) / IFD_ENTRY_SIZE) {
+                return 0;
+            }
+            final int end = offset + 2 + count * IFD_ENTRY_SIZE;
+            int thumbnailOffset = -1;
+            int thumbnailLength = 0;
+            int exifIfd = 0;
+            for (int entry = offset + 2; entry < end; entry += IFD_ENTRY_SIZE) {
+                final int tag = readShort(entry);
+                final int value = readValue(entry);
+                if (kind == IFD_MAIN && tag == TAG_ORIENTATION) {
+                    if (value >= ORIENTATION_NORMAL && value <= ORIENTATION_ROTATE_270) {
+                        mOrientation = value;
+                        mOrientationEntry = entry;
+                    }
+                } else if (kind == IFD_MAIN && tag == TAG_EXIF_IFD) {
+                    exifIfd = value;
+                } else if (kind == IFD_EXIF && tag == TAG_PIXEL_X_DIMENSION && value >= 0) {
+                    mWidthEntry = entry;
+                } else if (kind == IFD_EXIF && tag == TAG_PIXEL_Y_DIMENSION && value >= 0) {
+                    mHeightEntry = entry;
+                } else if (kind == IFD_THUMBNAIL && tag == TAG_THUMBNAIL_OFFSET) {
+                    thumbnailOffset = value;
+                } else if (kind == IFD_THUMBNAIL && tag == TAG_THUMBNAIL_LENGTH) {
+                    thumbnailLength = value;
+                }
+            }
+            if (thumbnailOffset >= 0 && thumbnailLength > 0) {
+                mThumbnailOffset = tiffStart + thumbnailOffset;
+                mThumbnailLength = thumbnailLength;
+                mThumbnailStart = thumbnailOffset;
+            }
+            if (exifIfd > 0 && exifIfd != offset) {
+                readIfd(exifIfd, tiffStart, IFD_EXIF);
+            }
+            if (end > mData.length - 4) {
+                return 0;
+            }
+            if (kind == IFD_MAIN) {
+                mThumbnailIfdPointer = end;
+            }
+            return readInt(end);
+        }
+
+        byte[] toUpright(int width, int height) {
+            // The thumbnail is usually stored last, then it can be cut off as well
+            final boolean thumbnailLast = mThumbnailStart > 8 && mThumbnailLength == mData.length - mThumbnailStart;
+            final int length = thumbnailLast ? mThumbnailStart : mData.length;
+            byte[] copy = new byte[length];
+            System.arraycopy(mData, 0, copy, 0, length);
+            if (mOrientationEntry >= 0) {
+                writeValue(copy, mOrientationEntry, ORIENTATION_NORMAL);
+            }
+            if (mWidthEntry >= 0) {
+                writeValue(copy, mWidthEntry, width);
+            }
+            if (mHeightEntry >= 0) {
+                writeValue(copy, mHeightEntry, height);
+            }
+            if (mThumbnailIfdPointer >= 0) {
+                writeInt(copy, mThumbnailIfdPointer, 0);
+            }
+            return copy;
+        }
+
+        // Single SHORT or LONG value stored in the entry itself, -1 for anything else
+        private int readValue(int entry) {
+            final int type = readShort(entry + 2);
+            if (readInt(entry + 4) != 1) {
+                return -1;
+            }
+            if (type == TYPE_SHORT) {
+                return readShort(entry + 8);
+            } else if (type == TYPE_LONG) {
+                return readInt(entry + 8);
+            }
+            return -1;
+        }
+
+        private void writeValue(byte[] data, int entry, int value) {
+            if (readShort(entry + 2) == TYPE_SHORT) {
+                writeShort(data, entry + 8, Math.min(value, 0xFFFF));
+            } else {
+                writeInt(data, entry + 8, value);
+            }
+        }
+
+        private int readShort(int offset) {
+            final int b0 = mData[offset] & 0xFF;
+            final int b1 = mData[offset + 1] & 0xFF;
+            return mLittleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+        }
+
+        private int readInt(int offset) {
+            final int s0 = readShort(offset);
+            final int s1 = readShort(offset + 2);
+            return mLittleEndian ? s1 << 16 | s0 : s0 << 16 | s1;
+        }
+
+        private void writeShort(byte[] data, int offset, int value) {
+            data[offset + (mLittleEndian ? 0 : 1)] = (byte) value;
+            data[offset + (mLittleEndian ? 1 : 0)] = (byte) (value >> 8);
+        }
+
+        private void writeInt(byte[] data, int offset, int value) {
+            writeShort(data, offset + (mLittleEndian ? 0 : 2), value & 0xFFFF);
+            writeShort(data, offset + (mLittleEndian ? 2 : 0), value >>> 16);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Copies metadata of the source JPEG into a JPEG as it is being written,
+ * for example by Bitmap.compress(), so that it does not have to be added
+ * afterwards by rewriting the whole file.
+ * <p>
+ * The marker segments the encoder writes in front of its frame header are
+ * held back (a few hundred bytes) until the frame header shows the size of
+ * the new image. Then the ICC profile, and if asked for the EXIF and XMP
+ * segments, are written after SOI and any JFIF segment, and everything else
+ * passes straight through. The EXIF data is corrected for the new image,
+ * see {@link JpegMetadata}. Output that does not look like a JPEG is
+ * written unchanged.
+ */
+public class JpegMetadataOutputStream extends FilterOutputStream {
+
+    // Give up on finding the frame header after this many bytes
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private final JpegMetadata mMetadata;
+    private final boolean mCopyExif;
+
+    // Held back bytes, null once they have been written
+    private byte[] mHeader = new byte[1024];
+    private int mHeaderLength;
+    // Start of the next segment to look at, and where the metadata goes
+    private int mScanPosition = 2;
+    private int mInsertPosition = 2;
+
+    /**
+     * @param out Stream the JPEG is written to
+     * @param metadata Source metadata, read with segments kept
+     * @param copyExif Also copy EXIF and XMP. These can contain the location
+     *                 and camera details, the ICC profile is always copied.
+     */
+    public JpegMetadataOutputStream(OutputStream out, JpegMetadata metadata, boolean copyExif) {
+        super(out);
+        mMetadata = metadata;
+        mCopyExif = copyExif;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        // Single bytes go straight into the held back header, no array per byte
+        if (mHeader == null) {
+            out.write(b);
+            return;
+        }
+        ensureHeaderCapacity(1);
+        mHeader[mHeaderLength++] = (byte) b;
+        scanHeader();
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        if (mHeader == null) {
+            out.write(b, offset, length);
+            return;
+        }
+        ensureHeaderCapacity(length);
+        System.arraycopy(b, offset, mHeader, mHeaderLength, length);
+        mHeaderLength += length;
+        scanHeader();
+    }
+
+    private void ensureHeaderCapacity(int length) {
+        if (mHeaderLength + length > mHeader.length) {
+            byte[] grown = new byte[Math.max(mHeader.length * 2, mHeaderLength + length)];
+            System.arraycopy(mHeader, 0, grown, 0, mHeaderLength);
+            mHeader = grown;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Held back bytes stay held back, they are written with the metadata or on close
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mHeader != null) {
+            passThrough();
+        }
+        super.close();
+    }
+
+    private void scanHeader() throws IOException {
+        if (mHeaderLength < 2) {
+            return;
+        }
+        if ((mHeader[0] & 0xFF) != 0xFF || (mHeader[1] & 0xFF) != JpegMarker.SOI) {
+            passThrough();
+            return;
+        }
+        while (mScanPosition + 4 <= mHeaderLength) {
+            final int position = mScanPosition;
+            final int marker = mHeader[position + 1] & 0xFF;
+            if ((mHeader[position] & 0xFF) != 0xFF || marker == JpegMarker.SOS || marker == JpegMarker.EOI) {
+                // No frame header where one was expected
+                passThrough();
+                return;
+            }
+            final int length = readShort(position + 2);
+            if (position + 2 + length > mHeaderLength) {
+                break;
+            }
+            if (JpegMarker.isFrame(marker) && length >= 7) {
+                final int height = readShort(position + 5);
+                final int width = readShort(position + 7);
+                writeWithMetadata(width, height);
+                return;
+            }
+            if (marker == JpegMarker.APP0 && mInsertPosition == position) {
+                // JFIF has to stay first
+                mInsertPosition = position + 2 + length;
+            }
+            mScanPosition = position + 2 + length;
+        }
+        if (mHeaderLength > MAX_HEADER_SIZE) {
+            passThrough();
+        }
+    }
+
+    private void passThrough() throws IOException {
+        byte[] header = mHeader;
+        mHeader = null;
+        out.write(header, 0, mHeaderLength);
+    }
+
+    private void writeWithMetadata(int width, int height) throws IOException {
+        byte[] header = mHeader;
+        mHeader = null;
+        out.write(header, 0, mInsertPosition);
+        if (mCopyExif) {
+            writeSegment(mMetadata.getExifSegment(width, height));
+        }
+        for (byte[] segment : mMetadata.getIccSegments()) {
+            writeSegment(segment);
+        }
+        if (mCopyExif) {
+            writeSegment(mMetadata.getXmpSegment());
+        }
+        out.write(header, mInsertPosition, mHeaderLength - mInsertPosition);
+    }
+
+    private void writeSegment(byte[] segment) throws IOException {
+        if (segment != null) {
+            out.write(segment, 0, segment.length);
+        }
+    }
+
+    private int readShort(int position) {
+        return (mHeader[position] & 0xFF) << 8 | (mHeader[position + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,165 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Buffered reader for JPEG marker segments and entropy-coded data.
+ */
+class JpegReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+    private long mBytesRead;
+
+    // Entropy decoder state
+    private int mBits;
+    private int mBitCount;
+    private int mPendingMarker = -1;
+
+    JpegReader(InputStream in) {
+        mIn = in;
+    }
+
+    int read() throws IOException {
+        if (mPosition == mLimit) {
+            fill();
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    int readUnsignedShort() throws IOException {
+        return (read() << 8) | read();
+    }
+
+    void readFully(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mPosition == mLimit) {
+                fill();
+            }
+            final int n = Math.min(length, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, offset, n);
+            mPosition += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    void skip(int length) throws IOException {
+        while (length > 0) {
+            if (mPosition == mLimit) {
+                fill();
+            }
+            final int n = Math.min(length, mLimit - mPosition);
+            mPosition += n;
+            length -= n;
+        }
+    }
+
+    // Reads the next marker code, skipping any 0xFF fill bytes
+    int readMarker() throws IOException {
+        int b = read();
+        if (b != 0xFF) {
+            throw new JpegException("Expected marker, found 0x" + Integer.toHexString(b));
+        }
+        do {
+            b = read();
+        } while (b == 0xFF);
+        return b;
+    }
+
+    long getBytesRead() {
+        return mBytesRead - (mLimit - mPosition);
+    }
+
+    private void fill() throws IOException {
+        final int n = mIn.read(mBuffer, 0, BUFFER_SIZE);
+        if (n <= 0) {
+            throw new EOFException("Unexpected end of JPEG data");
+        }
+        mPosition = 0;
+        mLimit = n;
+        mBytesRead += n;
+    }
+
+    // Entropy-coded data
+
+    private void fillBits() throws IOException {
+        while (mBitCount <= 24) {
+            int b = 0;
+            if (mPendingMarker < 0) {
+                b = read();
+                if (b == 0xFF) {
+                    int next = read();
+                    while (next == 0xFF) {
+                        next = read();
+                    }
+                    if (next != 0) {
+                        // Hit a marker, feed zeros from now on like libjpeg does
+                        mPendingMarker = next;
+                        b = 0;
+                    }
+                }
+            }
+            mBits = (mBits << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    int getBits(int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (mBitCount < count) {
+            fillBits();
+        }
+        mBitCount -= count;
+        return (mBits >>> mBitCount) & ((1 << count) - 1);
+    }
+
+    // Reads count bits and sign-extends them as in ITU T.81 F.2.2.1
+    int receiveExtend(int count) throws IOException {
+        final int v = getBits(count);
+        return v < (1 << (count - 1)) ? v - (1 << count) + 1 : v;
+    }
+
+    int decodeHuffman(HuffmanTable table) throws IOException {
+        if (mBitCount < 16) {
+            fillBits();
+        }
+        final int look = (mBits >>> (mBitCount - HuffmanTable.LOOKAHEAD)) & ((1 << HuffmanTable.LOOKAHEAD) - 1);
+        final int entry = table.lookup[look];
+        if (entry != 0) {
+            mBitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        final int code16 = (mBits >>> (mBitCount - 16)) & 0xFFFF;
+        for (int length = HuffmanTable.LOOKAHEAD + 1; length <= 16; length++) {
+            final int code = code16 >>> (16 - length);
+            if (code <= table.maxCode[length]) {
+                mBitCount -= length;
+                return table.values[table.valuePointer[length] + code - table.minCode[length]];
+            }
+        }
+        throw new JpegException("Corrupt Huffman data");
+    }
+
+    // Discards the remaining bits and consumes the RSTn marker that ends a restart interval
+    void restart() throws IOException {
+        mBits = 0;
+        mBitCount = 0;
+        int marker = mPendingMarker;
+        if (marker < 0) {
+            marker = readMarker();
+        }
+        if (marker < JpegMarker.RST0 || marker > JpegMarker.RST7) {
+            throw new JpegException("Expected restart marker, found 0x" + Integer.toHexString(marker));
+        }
+        mPendingMarker = -1;
+    }
+}
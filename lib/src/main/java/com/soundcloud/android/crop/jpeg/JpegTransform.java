@@ -0,0 +1,104 @@
+package com.soundcloud.android.crop.jpeg;
+
+/**
+ * Lossless JPEG transforms, one for each EXIF orientation.
+ * <p>
+ * Every transform is expressed as an optional mirror of the source axes
+ * followed by an optional transpose. In the DCT domain a mirror negates the
+ * odd frequencies along that axis and a transpose swaps the rows and columns
+ * of each block, so no pixels are ever decoded.
+ */
+public enum JpegTransform {
+
+    NONE(false, false, false),
+    FLIP_HORIZONTAL(true, false, false),
+    ROTATE_180(true, true, false),
+    FLIP_VERTICAL(false, true, false),
+    TRANSPOSE(false, false, true),
+    ROTATE_90(false, true, true),
+    TRANSVERSE(true, true, true),
+    ROTATE_270(true, false, true);
+
+    final boolean mirrorsX;
+    final boolean mirrorsY;
+    final boolean transposes;
+
+    // For each output coefficient (zigzag order): the source coefficient and its sign
+    final int[] sourceIndex = new int[64];
+    final int[] sign = new int[64];
+
+    JpegTransform(boolean mirrorsX, boolean mirrorsY, boolean transposes) {
+        this.mirrorsX = mirrorsX;
+        this.mirrorsY = mirrorsY;
+        this.transposes = transposes;
+
+        final int[] naturalToZigzag = new int[64];
+        for (int k = 0; k < 64; k++) {
+            naturalToZigzag[Zigzag.TO_NATURAL[k]] = k;
+        }
+        for (int k = 0; k < 64; k++) {
+            final int row = Zigzag.TO_NATURAL[k] / 8;
+            final int column = Zigzag.TO_NATURAL[k] % 8;
+            // Source frequencies: vertical u, horizontal v
+            final int u = transposes ? column : row;
+            final int v = transposes ? row : column;
+            sourceIndex[k] = naturalToZigzag[u * 8 + v];
+            final boolean negate = (mirrorsX && (v & 1) != 0) ^ (mirrorsY && (u & 1) != 0);
+            sign[k] = negate ? -1 : 1;
+        }
+    }
+
+    /**
+     * @param orientation EXIF orientation tag value (1-8)
+     * @return Transform that displays the image upright
+     */
+    public static JpegTransform fromExifOrientation(int orientation) {
+        switch (orientation) {
+            case 2:
+                return FLIP_HORIZONTAL;
+            case 3:
+                return ROTATE_180;
+            case 4:
+                return FLIP_VERTICAL;
+            case 5:
+                return TRANSPOSE;
+            case 6:
+                return ROTATE_90;
+            case 7:
+                return TRANSVERSE;
+            case 8:
+                return ROTATE_270;
+            default:
+                return NONE;
+        }
+    }
+
+    // Enum constructors cannot read the enum's own static fields
+    private static class Zigzag {
+        // Natural (row major) index of the k-th coefficient in zigzag order
+        static final int[] TO_NATURAL = {
+                0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+                12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+                35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+                58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+    }
+
+    public boolean mirrorsX() {
+        return mirrorsX;
+    }
+
+    public boolean mirrorsY() {
+        return mirrorsY;
+    }
+
+    public boolean transposes() {
+        return transposes;
+    }
+
+    // Transforms a block of zigzag ordered coefficients
+    void apply(int[] in, int[] out) {
+        for (int k = 0; k < 64; k++) {
+            out[k] = sign[k] * in[sourceIndex[k]];
+        }
+    }
+}
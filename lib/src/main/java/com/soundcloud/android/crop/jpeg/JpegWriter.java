@@ -0,0 +1,88 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Buffered writer for JPEG marker segments and entropy-coded data.
+ */
+class JpegWriter {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+
+    // Entropy encoder state
+    private int mBits;
+    private int mBitCount;
+
+    JpegWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    void write(int b) throws IOException {
+        if (mPosition == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        mBuffer[mPosition++] = (byte) b;
+    }
+
+    void writeShort(int value) throws IOException {
+        write(value >> 8);
+        write(value);
+    }
+
+    void write(byte[] b, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            write(b[offset + i]);
+        }
+    }
+
+    void writeMarker(int marker) throws IOException {
+        write(0xFF);
+        write(marker);
+    }
+
+    void writeBits(int bits, int count) throws IOException {
+        mBits = (mBits << count) | (bits & ((1 << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            final int b = (mBits >> (mBitCount - 8)) & 0xFF;
+            write(b);
+            if (b == 0xFF) {
+                // Byte stuffing
+                write(0);
+            }
+            mBitCount -= 8;
+        }
+        mBits &= (1 << mBitCount) - 1;
+    }
+
+    void writeHuffman(HuffmanTable table, int symbol) throws IOException {
+        final int size = table.sizes[symbol];
+        if (size == 0) {
+            throw new JpegException("No Huffman code for symbol 0x" + Integer.toHexString(symbol));
+        }
+        writeBits(table.codes[symbol], size);
+    }
+
+    // Pads the last byte of entropy-coded data with one bits
+    void flushBits() throws IOException {
+        if (mBitCount > 0) {
+            final int pad = 8 - mBitCount;
+            writeBits((1 << pad) - 1, pad);
+        }
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        mOut.write(mBuffer, 0, mPosition);
+        mPosition = 0;
+    }
+}
@@ -0,0 +1,439 @@
+package com.soundcloud.android.crop.jpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Crops baseline and extended sequential Huffman JPEGs without decoding
+ * them to pixels.
+ * <p>
+ * The crop origin is snapped to the MCU grid, so every output block is a
+ * source block: the quantized DCT coefficients are copied as they are and
+ * only the Huffman coding is redone. The image quality is untouched and
+ * memory use does not depend on the image size, since the source is
+ * streamed one MCU at a time.
+ * <p>
+ * A {@link JpegTransform} can be applied in the same pass, in which case the
+ * cropped coefficients are buffered (2 bytes per coefficient) and written
+ * out in the transformed block order.
+ * <p>
+ * The constructor reads the headers and throws {@link JpegException} for
+ * unsupported sources (progressive, arithmetic coding, 12-bit, CMYK), so
+ * callers can fall back to a pixel based crop before any output is written.
+ */
+public class LosslessJpegCropper {
+
+    private final JpegReader mReader;
+    private final JpegHeader mHeader;
+
+    // Quantized coefficients of one block in zigzag order
+    private final int[] mBlock = new int[64];
+    private int[] mDecodePredictors;
+    private int[] mEncodePredictors;
+
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropWidth;
+    private int mCropHeight;
+
+    /**
+     * @param in Source JPEG, positioned at the start. Not closed by the cropper.
+     */
+    public LosslessJpegCropper(InputStream in) throws IOException {
+        mReader = new JpegReader(in);
+        mHeader = JpegHeader.read(mReader);
+    }
+
+    public int getWidth() {
+        return mHeader.width;
+    }
+
+    public int getHeight() {
+        return mHeader.height;
+    }
+
+    /**
+     * Horizontal MCU size, the crop origin is moved left to a multiple of it
+     */
+    public int getMcuWidth() {
+        return mHeader.getMcuWidth();
+    }
+
+    /**
+     * Vertical MCU size, the crop origin is moved up to a multiple of it
+     */
+    public int getMcuHeight() {
+        return mHeader.getMcuHeight();
+    }
+
+    /**
+     * Writes the given region of the source to out. The right and bottom edges
+     * are kept, the left and top edges grow to the MCU grid, see
+     * {@link #getCropLeft()} and {@link #getCropTop()} for the final origin.
+     */
+    public void crop(int left, int top, int right, int bottom, OutputStream out) throws IOException {
+        crop(left, top, right, bottom, JpegTransform.NONE, out);
+    }
+
+    /**
+     * Writes the given region of the source to out, transformed. The region is
+     * in source coordinates, before the transform is applied. Edges the
+     * transform mirrors grow to the MCU grid on the right or bottom instead,
+     * see {@link #getCropWidth()} and {@link #getCropHeight()}.
+     */
+    public void crop(int left, int top, int right, int bottom, JpegTransform transform,
+                     OutputStream out) throws IOException {
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(mHeader.width, right);
+        bottom = Math.min(mHeader.height, bottom);
+        if (left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Crop (" + left + "," + top + "," + right + "," + bottom
+                                               + ") is outside of the image (" + mHeader.width + "," + mHeader.height + ")");
+        }
+        final int mcuWidth = mHeader.getMcuWidth();
+        final int mcuHeight = mHeader.getMcuHeight();
+
+        final int[] horizontal = snapToMcuGrid(left, right, mcuWidth, mHeader.width, transform.mirrorsX);
+        final int[] vertical = snapToMcuGrid(top, bottom, mcuHeight, mHeader.height, transform.mirrorsY);
+        mCropLeft = horizontal[0];
+        mCropWidth = horizontal[1] - horizontal[0];
+        mCropTop = vertical[0];
+        mCropHeight = vertical[1] - vertical[0];
+
+        final int firstColumn = mCropLeft / mcuWidth;
+        final int columns = (horizontal[1] + mcuWidth - 1) / mcuWidth - firstColumn;
+        final int firstRow = mCropTop / mcuHeight;
+        final int rows = (vertical[1] + mcuHeight - 1) / mcuHeight - firstRow;
+
+        JpegWriter writer = new JpegWriter(out);
+        if (transform == JpegTransform.NONE) {
+            writeHeaders(writer, mCropWidth, mCropHeight, transform);
+            copyBlocks(writer, firstColumn, columns, firstRow, rows);
+        } else {
+            final short[][] coefficients = readBlocks(firstColumn, columns, firstRow, rows);
+            if (transform.transposes) {
+                writeHeaders(writer, mCropHeight, mCropWidth, transform);
+            } else {
+                writeHeaders(writer, mCropWidth, mCropHeight, transform);
+            }
+            writeTransformedBlocks(writer, coefficients, columns, rows, transform);
+        }
+        writer.flushBits();
+        writer.writeMarker(JpegMarker.EOI);
+        writer.flush();
+    }
+
+    /*
+     * The output has to start on a block boundary in both axes, partial blocks
+     * are only allowed at its end. Without a mirror the source start moves back
+     * to the grid; with a mirror the source end becomes the output start, so it
+     * moves forward to the grid instead, or back if the image ends first.
+     */
+    private static int[] snapToMcuGrid(int start, int end, int mcuSize, int imageSize,
+                                       boolean mirrored) throws JpegException {
+        if (!mirrored) {
+            return new int[] { start / mcuSize * mcuSize, end };
+        }
+        int alignedEnd = (end + mcuSize - 1) / mcuSize * mcuSize;
+        if (alignedEnd > imageSize) {
+            alignedEnd -= mcuSize;
+        }
+        if (alignedEnd <= start) {
+            throw new JpegException("Crop is smaller than one MCU at the image edge");
+        }
+        return new int[] { start, alignedEnd };
+    }
+
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    public int getCropWidth() {
+        return mCropWidth;
+    }
+
+    public int getCropHeight() {
+        return mCropHeight;
+    }
+
+    private void copyBlocks(JpegWriter writer, int firstColumn, int columns, int firstRow, int rows) throws IOException {
+        final JpegHeader.Component[] components = mHeader.components;
+        final int mcusPerLine = (mHeader.width + mHeader.getMcuWidth() - 1) / mHeader.getMcuWidth();
+        final int restartInterval = mHeader.restartInterval;
+        final int lastRow = firstRow + rows;
+        final int lastColumn = firstColumn + columns;
+
+        mDecodePredictors = new int[components.length];
+        mEncodePredictors = new int[components.length];
+
+        int mcu = 0;
+        for (int row = 0; row < lastRow; row++) {
+            final boolean rowInside = row >= firstRow;
+            for (int column = 0; column < mcusPerLine; column++) {
+                if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                    mReader.restart();
+                    for (int c = 0; c < components.length; c++) {
+                        mDecodePredictors[c] = 0;
+                    }
+                }
+                final boolean inside = rowInside && column >= firstColumn && column < lastColumn;
+                for (int c = 0; c < components.length; c++) {
+                    final JpegHeader.Component component = components[c];
+                    final int blocks = component.h * component.v;
+                    for (int b = 0; b < blocks; b++) {
+                        decodeBlock(component, c);
+                        if (inside) {
+                            encodeBlock(writer, c, mBlock, mEncodePredictors);
+                        }
+                    }
+                }
+                mcu++;
+            }
+        }
+    }
+
+    // Decodes the blocks inside the crop into one coefficient array per component
+    private short[][] readBlocks(int firstColumn, int columns, int firstRow, int rows) throws IOException {
+        final JpegHeader.Component[] components = mHeader.components;
+        final int mcusPerLine = (mHeader.width + mHeader.getMcuWidth() - 1) / mHeader.getMcuWidth();
+        final int restartInterval = mHeader.restartInterval;
+        final int lastRow = firstRow + rows;
+        final int lastColumn = firstColumn + columns;
+
+        final short[][] coefficients = new short[components.length][];
+        for (int c = 0; c < components.length; c++) {
+            coefficients[c] = new short[columns * components[c].h * rows * components[c].v * 64];
+        }
+        mDecodePredictors = new int[components.length];
+        final int[] block = mBlock;
+
+        int mcu = 0;
+        for (int row = 0; row < lastRow; row++) {
+            final boolean rowInside = row >= firstRow;
+            for (int column = 0; column < mcusPerLine; column++) {
+                if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                    mReader.restart();
+                    for (int c = 0; c < components.length; c++) {
+                        mDecodePredictors[c] = 0;
+                    }
+                }
+                final boolean inside = rowInside && column >= firstColumn && column < lastColumn;
+                for (int c = 0; c < components.length; c++) {
+                    final JpegHeader.Component component = components[c];
+                    final int blocksPerLine = columns * component.h;
+                    for (int y = 0; y < component.v; y++) {
+                        for (int x = 0; x < component.h; x++) {
+                            decodeBlock(component, c);
+                            if (inside) {
+                                final int blockX = (column - firstColumn) * component.h + x;
+                                final int blockY = (row - firstRow) * component.v + y;
+                                final int offset = (blockY * blocksPerLine + blockX) * 64;
+                                final short[] target = coefficients[c];
+                                for (int k = 0; k < 64; k++) {
+                                    target[offset + k] = (short) block[k];
+                                }
+                            }
+                        }
+                    }
+                }
+                mcu++;
+            }
+        }
+        return coefficients;
+    }
+
+    private void writeTransformedBlocks(JpegWriter writer, short[][] coefficients, int columns, int rows,
+                                        JpegTransform transform) throws IOException {
+        final JpegHeader.Component[] components = mHeader.components;
+        final int outColumns = transform.transposes ? rows : columns;
+        final int outRows = transform.transposes ? columns : rows;
+        final int[] source = new int[64];
+        final int[] block = mBlock;
+        mEncodePredictors = new int[components.length];
+
+        for (int row = 0; row < outRows; row++) {
+            for (int column = 0; column < outColumns; column++) {
+                for (int c = 0; c < components.length; c++) {
+                    final JpegHeader.Component component = components[c];
+                    // Source block grid of this component
+                    final int blocksPerLine = columns * component.h;
+                    final int blockRows = rows * component.v;
+                    final int outH = transform.transposes ? component.v : component.h;
+                    final int outV = transform.transposes ? component.h : component.v;
+                    for (int y = 0; y < outV; y++) {
+                        for (int x = 0; x < outH; x++) {
+                            final int outX = column * outH + x;
+                            final int outY = row * outV + y;
+                            int sourceX = transform.transposes ? outY : outX;
+                            int sourceY = transform.transposes ? outX : outY;
+                            if (transform.mirrorsX) {
+                                sourceX = blocksPerLine - 1 - sourceX;
+                            }
+                            if (transform.mirrorsY) {
+                                sourceY = blockRows - 1 - sourceY;
+                            }
+                            final int offset = (sourceY * blocksPerLine + sourceX) * 64;
+                            final short[] from = coefficients[c];
+                            for (int k = 0; k < 64; k++) {
+                                source[k] = from[offset + k];
+                            }
+                            transform.apply(source, block);
+                            encodeBlock(writer, c, block, mEncodePredictors);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void decodeBlock(JpegHeader.Component component, int c) throws IOException {
+        final int[] block = mBlock;
+        final JpegReader reader = mReader;
+
+        final int dcSize = reader.decodeHuffman(component.dcTable);
+        mDecodePredictors[c] += dcSize == 0 ? 0 : reader.receiveExtend(dcSize);
+        block[0] = mDecodePredictors[c];
+
+        int k = 1;
+        while (k < 64) {
+            final int rs = reader.decodeHuffman(component.acTable);
+            final int run = rs >> 4;
+            final int size = rs & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+                // ZRL: sixteen zeros
+                for (int i = 0; i < 16 && k < 64; i++) {
+                    block[k++] = 0;
+                }
+                continue;
+            }
+            for (int i = 0; i < run && k < 64; i++) {
+                block[k++] = 0;
+            }
+            if (k > 63) {
+                throw new JpegException("Corrupt AC coefficient data");
+            }
+            block[k++] = reader.receiveExtend(size);
+        }
+        while (k < 64) {
+            block[k++] = 0;
+        }
+    }
+
+    // Entropy codes a block of zigzag ordered coefficients with the standard tables
+    static void encodeBlock(JpegWriter writer, int c, int[] block, int[] predictors) throws IOException {
+        final HuffmanTable dcTable = c == 0 ? HuffmanTable.DC_LUMINANCE : HuffmanTable.DC_CHROMINANCE;
+        final HuffmanTable acTable = c == 0 ? HuffmanTable.AC_LUMINANCE : HuffmanTable.AC_CHROMINANCE;
+        final int diff = block[0] - predictors[c];
+        predictors[c] = block[0];
+        final int dcSize = bitLength(diff);
+        writer.writeHuffman(dcTable, dcSize);
+        if (dcSize != 0) {
+            writer.writeBits(diff < 0 ? diff - 1 : diff, dcSize);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            final int v = block[k];
+            if (v == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writer.writeHuffman(acTable, 0xF0);
+                run -= 16;
+            }
+            final int size = bitLength(v);
+            writer.writeHuffman(acTable, (run << 4) | size);
+            writer.writeBits(v < 0 ? v - 1 : v, size);
+            run = 0;
+        }
+        if (run > 0) {
+            writer.writeHuffman(acTable, 0x00);
+        }
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    private void writeHeaders(JpegWriter writer, int width, int height, JpegTransform transform) throws IOException {
+        final JpegHeader header = mHeader;
+        final JpegHeader.Component[] components = header.components;
+
+        writer.writeMarker(JpegMarker.SOI);
+        for (byte[] segment : header.colorSegments) {
+            writer.write(segment, 0, segment.length);
+        }
+
+        for (int id = 0; id < header.quantTables.length; id++) {
+            final int[] table = header.quantTables[id];
+            if (table == null) {
+                continue;
+            }
+            final boolean wide = header.quantTable16Bit[id];
+            writer.writeMarker(JpegMarker.DQT);
+            writer.writeShort(2 + 1 + (wide ? 128 : 64));
+            writer.write((wide ? 0x10 : 0x00) | id);
+            for (int i = 0; i < 64; i++) {
+                // Transposed blocks need the transposed quantization table
+                final int value = table[transform.sourceIndex[i]];
+                if (wide) {
+                    writer.writeShort(value);
+                } else {
+                    writer.write(value);
+                }
+            }
+        }
+
+        writer.writeMarker(header.frameMarker);
+        writer.writeShort(8 + 3 * components.length);
+        writer.write(8);
+        writer.writeShort(height);
+        writer.writeShort(width);
+        writer.write(components.length);
+        for (JpegHeader.Component c : components) {
+            writer.write(c.id);
+            writer.write(transform.transposes ? (c.v << 4) | c.h : (c.h << 4) | c.v);
+            writer.write(c.quantTable);
+        }
+
+        writeHuffmanTable(writer, 0x00, HuffmanTable.DC_LUMINANCE);
+        writeHuffmanTable(writer, 0x10, HuffmanTable.AC_LUMINANCE);
+        if (components.length > 1) {
+            writeHuffmanTable(writer, 0x01, HuffmanTable.DC_CHROMINANCE);
+            writeHuffmanTable(writer, 0x11, HuffmanTable.AC_CHROMINANCE);
+        }
+
+        writer.writeMarker(JpegMarker.SOS);
+        writer.writeShort(6 + 2 * components.length);
+        writer.write(components.length);
+        for (int i = 0; i < components.length; i++) {
+            writer.write(components[i].id);
+            writer.write(i == 0 ? 0x00 : 0x11);
+        }
+        writer.write(0);
+        writer.write(63);
+        writer.write(0);
+    }
+
+    private static void writeHuffmanTable(JpegWriter writer, int classAndId, HuffmanTable table) throws IOException {
+        writer.writeMarker(JpegMarker.DHT);
+        writer.writeShort(2 + 1 + 16 + table.getValueCount());
+        writer.write(classAndId);
+        for (int i = 0; i < 16; i++) {
+            writer.write(table.counts[i]);
+        }
+        for (int i = 0; i < table.getValueCount(); i++) {
+            writer.write(table.values[i]);
+        }
+    }
+}
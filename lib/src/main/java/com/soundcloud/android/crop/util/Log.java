@@ -12,4 +12,10 @@ public class Log {
         android.util.Log.e(TAG, msg, e);
     }
 
+    public static final void d(String msg) {
+        if (android.util.Log.isLoggable(TAG, android.util.Log.DEBUG)) {
+            android.util.Log.d(TAG, msg);
+        }
+    }
+
 }